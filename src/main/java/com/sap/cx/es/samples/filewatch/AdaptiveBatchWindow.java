@@ -0,0 +1,107 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching window of the watcher poll loop which follows the observed event rate.
+ * Window is zero when the watcher is idle and grows up to the latency budget when
+ * the event rate reaches the burst rate.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class AdaptiveBatchWindow {
+	// Weight of the last batch in the rate average
+	private static final double ALPHA = 0.3;
+
+	// Time constant of the rate decay while there are no events
+	private static final long RATE_DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private double eventRate = 0;
+	private long lastBatchAt = 0;
+
+	/**
+	 * Register dispatched batch
+	 *
+	 * @param events batch size
+	 * @param nanoTime batch time, {@link System#nanoTime()}
+	 */
+	public synchronized void record(int events, long nanoTime) {
+		if (lastBatchAt != 0) {
+			// At least 1ms for prevent rate explosion on back-to-back batches
+			long interval = Math.max(nanoTime - lastBatchAt, TimeUnit.MILLISECONDS.toNanos(1));
+			double rate = events * (double) TimeUnit.SECONDS.toNanos(1) / interval;
+			eventRate = ALPHA * rate + (1 - ALPHA) * decayedRate(nanoTime);
+		}
+		lastBatchAt = nanoTime;
+	}
+
+	public void record(int events) {
+		record(events, System.nanoTime());
+	}
+
+	/**
+	 * @return smoothed event rate, events per second
+	 */
+	public double getEventRate() {
+		return getEventRate(System.nanoTime());
+	}
+
+	/**
+	 * @param nanoTime current time, {@link System#nanoTime()}
+	 * @return smoothed event rate decayed by the time since the last batch, events per second
+	 */
+	public synchronized double getEventRate(long nanoTime) {
+		return decayedRate(nanoTime);
+	}
+
+	/**
+	 * @param maxLatencyNanos latency budget of the batch
+	 * @param burstEventRate events per second when the whole budget is used
+	 * @return how long to wait for further events after the first one, nanoseconds
+	 */
+	public long getWindowNanos(long maxLatencyNanos, double burstEventRate) {
+		return getWindowNanos(maxLatencyNanos, burstEventRate, System.nanoTime());
+	}
+
+	/**
+	 * @param maxLatencyNanos latency budget of the batch
+	 * @param burstEventRate events per second when the whole budget is used
+	 * @param nanoTime current time, {@link System#nanoTime()}
+	 * @return how long to wait for further events after the first one, nanoseconds
+	 */
+	public synchronized long getWindowNanos(long maxLatencyNanos, double burstEventRate, long nanoTime) {
+		if (maxLatencyNanos <= 0 || burstEventRate <= 0) {
+			return 0;
+		}
+		return (long) (maxLatencyNanos * Math.min(1.0, decayedRate(nanoTime) / burstEventRate));
+	}
+
+	/**
+	 * The average is only updated by batches, so after a storm it would stay high for the whole idle time.
+	 * Decay it exponentially by the time without events instead.
+	 */
+	private double decayedRate(long nanoTime) {
+		if (lastBatchAt == 0) {
+			return eventRate;
+		}
+		long idle = Math.max(nanoTime - lastBatchAt, 0);
+		return eventRate * Math.exp(-(double) idle / RATE_DECAY_NANOS);
+	}
+}
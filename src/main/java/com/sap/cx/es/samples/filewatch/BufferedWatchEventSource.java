@@ -0,0 +1,230 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Base of the event sources which produce events themselves (polling, simulation etc.)
+ * Keys follow the native watch service semantics: a key with pending events is signalled once
+ * and is queued again on reset if new events came; the pending events are bounded and
+ * the events above the capacity are replaced with a single OVERFLOW event.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public abstract class BufferedWatchEventSource implements WatchEventSource {
+	private final Map<Path, BufferedKey> keys = new ConcurrentHashMap<>();
+	private final BlockingQueue<BufferedKey> signalled = new LinkedBlockingQueue<>();
+
+	// Max number of pending events per key, like fs.inotify.max_queued_events
+	private final int keyCapacity;
+
+	private volatile boolean closed = false;
+
+	protected BufferedWatchEventSource(int keyCapacity) {
+		this.keyCapacity = keyCapacity;
+	}
+
+	@Override
+	public WatchKey register(Path directory) throws IOException {
+		checkOpen();
+		return keys.computeIfAbsent(directory.toAbsolutePath(), BufferedKey::new);
+	}
+
+	/**
+	 * @param directory
+	 * @return key of the registered directory or null
+	 */
+	protected BufferedKey getKey(Path directory) {
+		return keys.get(directory.toAbsolutePath());
+	}
+
+	protected Collection<BufferedKey> getKeys() {
+		return keys.values();
+	}
+
+	public static <T> WatchEvent<T> event(WatchEvent.Kind<T> kind, T context) {
+		return new BufferedEvent<>(kind, context);
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		return checkKey(signalled.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.take());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			keys.values().forEach(BufferedKey::cancel);
+			// Wake up waiting watcher
+			signalled.offer(new BufferedKey(null));
+		}
+	}
+
+	protected boolean isClosed() {
+		return closed;
+	}
+
+	protected void checkOpen() {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+	}
+
+	private BufferedKey checkKey(BufferedKey key) {
+		checkOpen();
+		return key;
+	}
+
+	protected final class BufferedKey implements WatchKey {
+		private final Path directory;
+		private List<WatchEvent<?>> events = new ArrayList<>();
+		private boolean overflow = false;
+		private boolean isSignalled = false;
+		private volatile boolean valid = true;
+
+		private BufferedKey(Path directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Add events atomically, the watcher can not consume them until all are queued
+		 *
+		 * @param added
+		 */
+		public synchronized void add(List<? extends WatchEvent<?>> added) {
+			if (!valid) {
+				return;
+			}
+			for (WatchEvent<?> event : added) {
+				if (events.size() < keyCapacity) {
+					events.add(event);
+				} else if (!overflow) {
+					// Like inotify the queue keeps the first events and a single OVERFLOW event
+					events.add(new BufferedEvent<>(OVERFLOW, null));
+					overflow = true;
+				}
+			}
+			signal();
+		}
+
+		private void signal() {
+			if (!isSignalled && !events.isEmpty()) {
+				isSignalled = true;
+				signalled.offer(this);
+			}
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			List<WatchEvent<?>> result = events;
+			events = new ArrayList<>();
+			overflow = false;
+			return result;
+		}
+
+		@Override
+		public synchronized boolean reset() {
+			if (!valid) {
+				return false;
+			}
+			isSignalled = false;
+			signal();
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+			valid = false;
+		}
+
+		/**
+		 * Cancel the key and signal it, so the watcher finds out that the directory is gone
+		 */
+		public synchronized void invalidate() {
+			valid = false;
+			if (!isSignalled) {
+				isSignalled = true;
+				signalled.offer(this);
+			}
+		}
+
+		@Override
+		public Path watchable() {
+			return directory;
+		}
+	}
+
+	private static final class BufferedEvent<T> implements WatchEvent<T> {
+		private final Kind<T> kind;
+		private final T context;
+
+		private BufferedEvent(Kind<T> kind, T context) {
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@Override
+		public Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public int count() {
+			return 1;
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+	}
+}
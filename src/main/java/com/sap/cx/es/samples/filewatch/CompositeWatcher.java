@@ -0,0 +1,216 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import com.sap.cx.es.samples.filewatch.event.FileEventListener;
+import com.sap.cx.es.samples.filewatch.event.RootedFileEvent;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watcher of a set of roots (directories and files) with a single merged event stream.
+ * Roots are resolved to canonical paths (symbolic links etc.), roots on the same physical directory
+ * are collapsed and each directory is registered once. Listeners receive every event once,
+ * in the same order for all listeners, as {@link RootedFileEvent} tagged with all matching roots.
+ * <p>
+ * Like {@link FileWatcher} the watching is not recursive: a root nested into another one is
+ * a separate directory, the outer root only sees changes of the nested directory entry itself.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class CompositeWatcher {
+	// Physical directory -> roots on it
+	private final Map<Path, List<Root>> directories = new LinkedHashMap<>();
+	private final Set<File> roots = new LinkedHashSet<>();
+
+	private final List<FileWatcher> watchers = new ArrayList<>();
+	private final List<ListenerMailbox> mailboxes = new CopyOnWriteArrayList<>();
+
+	private final FileEventListener relay = new FileEventListener() {
+		@Override
+		public void onCreated(FileEvent event) {
+			dispatch(ENTRY_CREATE, event.getFile());
+		}
+
+		@Override
+		public void onModified(FileEvent event) {
+			dispatch(ENTRY_MODIFY, event.getFile());
+		}
+
+		@Override
+		public void onDeleted(FileEvent event) {
+			dispatch(ENTRY_DELETE, event.getFile());
+		}
+	};
+
+	public CompositeWatcher(Collection<File> roots) throws IOException {
+		for (File root : roots) {
+			Path canonical = canonicalPath(root);
+			boolean isDirectory = Files.isDirectory(canonical);
+			Path directory = isDirectory ? canonical : canonical.getParent();
+
+			this.roots.add(root);
+			directories.computeIfAbsent(directory, key -> new ArrayList<>())
+					.add(new Root(root, isDirectory ? null : canonical));
+		}
+	}
+
+	public CompositeWatcher addListener(FileEventListener listener) {
+		return addListener(listener, ListenerPriority.NORMAL);
+	}
+
+	public CompositeWatcher addListener(FileEventListener listener, ListenerPriority priority) {
+		return addListener(listener, WatcherRegister.getRegister().getExecutor(priority));
+	}
+
+	/**
+	 * Add listener served by the dedicated executor
+	 *
+	 * @param listener
+	 * @param executor
+	 * @return
+	 */
+	public CompositeWatcher addListener(FileEventListener listener, Executor executor) {
+		mailboxes.add(new ListenerMailbox(listener, executor, WatcherRegister.getRegister().getListenerMailboxCapacity()));
+		return this;
+	}
+
+	public CompositeWatcher removeListener(FileEventListener listener) {
+		mailboxes.removeIf(mailbox -> mailbox.getListener() == listener);
+		return this;
+	}
+
+	/**
+	 * Start watching of all physical directories. Directories are shared with other watchers
+	 * of the {@link WatcherRegister} on the same canonical path.
+	 *
+	 * @return
+	 */
+	public synchronized CompositeWatcher watch() {
+		if (watchers.isEmpty()) {
+			for (Path directory : directories.keySet()) {
+				FileWatcher watcher = WatcherRegister.getRegister().acquireWatcher(directory.toFile());
+				// Relay runs on the watcher thread, listener priorities and drops are handled by the composite mailboxes
+				watcher.addListener(relay, MoreExecutors.directExecutor());
+				watcher.watch();
+				watchers.add(watcher);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if all physical directories are registered and watched
+	 */
+	public synchronized boolean isWatching() {
+		return !watchers.isEmpty() && watchers.stream().allMatch(FileWatcher::isWatching);
+	}
+
+	/**
+	 * Stop delivering events. Physical watchers stay in the register for their other holders and listeners,
+	 * the rest are stopped and release their resources.
+	 */
+	public synchronized void close() {
+		for (FileWatcher watcher : watchers) {
+			watcher.removeListener(relay);
+			WatcherRegister.getRegister().releaseWatcher(watcher);
+		}
+		watchers.clear();
+	}
+
+	/**
+	 * Tag the event with the matching roots and put it to the listener mailboxes.
+	 * Events of all directories pass here one by one, so every listener gets the same order.
+	 */
+	private synchronized void dispatch(WatchEvent.Kind<?> kind, File file) {
+		Path path = file.toPath();
+		List<Root> candidates = directories.get(path.getParent());
+		if (Objects.isNull(candidates)) {
+			return;
+		}
+
+		Set<File> matched = new LinkedHashSet<>();
+		for (Root root : candidates) {
+			if (root.matches(path)) {
+				matched.add(root.file);
+			}
+		}
+		if (matched.isEmpty()) {
+			return;
+		}
+
+		RootedFileEvent event = new RootedFileEvent(file, matched);
+		mailboxes.forEach(mailbox -> mailbox.offer(kind, event));
+	}
+
+	/**
+	 * @return physical directories registered for the roots
+	 */
+	public Set<Path> getDirectories() {
+		return Collections.unmodifiableSet(directories.keySet());
+	}
+
+	public Set<File> getRoots() {
+		return Collections.unmodifiableSet(roots);
+	}
+
+	public List<ListenerMailbox> getMailboxes() {
+		return Collections.unmodifiableList(mailboxes);
+	}
+
+	private static Path canonicalPath(File root) throws IOException {
+		Path path = root.toPath().toAbsolutePath().normalize();
+		// Not existing file root is resolved by its parent, so it is watched for creation
+		return Files.exists(path) ? path.toRealPath() : canonicalPath(path.getParent().toFile()).resolve(path.getFileName());
+	}
+
+	private static final class Root {
+		private final File file;
+
+		// Canonical path of the file root, null for the directory root
+		private final Path canonicalFile;
+
+		private Root(File file, Path canonicalFile) {
+			this.file = file;
+			this.canonicalFile = canonicalFile;
+		}
+
+		private boolean matches(Path path) {
+			return Objects.isNull(canonicalFile) || canonicalFile.equals(path);
+		}
+	}
+}
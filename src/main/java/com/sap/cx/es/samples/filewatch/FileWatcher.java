@@ -17,7 +17,6 @@ package com.sap.cx.es.samples.filewatch;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
@@ -25,8 +24,15 @@ import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sap.cx.es.samples.filewatch.event.FileEvent;
 import com.sap.cx.es.samples.filewatch.event.FileEventListener;
@@ -34,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * @author Alexei Liubimov <alexei.liubimov@sap.com>
@@ -44,7 +51,9 @@ import static java.nio.file.StandardWatchEventKinds.*;
 public class FileWatcher implements Runnable {
 	private final static Logger LOG = LoggerFactory.getLogger(FileWatcher.class);
 
-	protected List<FileEventListener> listeners = new ArrayList<>();
+	// Listeners are read by the watcher thread and monitoring threads while they are changed
+	protected List<FileEventListener> listeners = new CopyOnWriteArrayList<>();
+	protected final Map<FileEventListener, ListenerMailbox> mailboxes = new ConcurrentHashMap<>();
 	protected final File file;
 
 	private boolean isFileWatcher;
@@ -52,12 +61,37 @@ public class FileWatcher implements Runnable {
 	// Activation flag for preventing start an another watcher thread
 	private boolean isActive = false;
 
+	private final AdaptiveBatchWindow batchWindow = new AdaptiveBatchWindow();
+
+	// Custom source of events, native watch service is used if null
+	private final WatchEventSource eventSource;
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	// Source in use and the demotion/promotion flags, see WatcherRegister native watch accounting
+	private volatile WatchEventSource currentSource;
+	private volatile boolean demoted = false;
+	private volatile boolean promoted = false;
+	private volatile boolean stopped = false;
+
+	private volatile long lastEventAt = System.nanoTime();
+
 	public FileWatcher(File file) {
+		this(file, null);
+	}
+
+	/**
+	 * @param file
+	 * @param eventSource source of events for the watcher (simulated, polling etc.)
+	 */
+	public FileWatcher(File file, WatchEventSource eventSource) {
 		this.file = file;
 		this.isFileWatcher = file.isFile();
+		this.eventSource = eventSource;
 	}
 
 	synchronized public void watch() {
+		checkNotStopped();
 		if (file.exists() && !isActive) {
 			LOG.debug("Watcher activated on: %s", file.getName());
 
@@ -68,32 +102,162 @@ public class FileWatcher implements Runnable {
 
 	@Override
 	public void run() {
-		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-			Path path = Paths.get(file.isDirectory() ? file.getAbsolutePath() : file.getParentFile().getAbsolutePath());
+		WatcherRegister register = WatcherRegister.getRegister();
+		Path path = Paths.get(file.isDirectory() ? file.getAbsolutePath() : file.getParentFile().getAbsolutePath());
+		// Polling of a file watcher scans only the file
+		Path watchedFile = isFileWatcher ? Paths.get(file.getAbsolutePath()) : null;
+		try {
+			WatchEventSource source;
+			if (Objects.nonNull(eventSource)) {
+				source = eventSource;
+				source.register(path);
+			} else {
+				// Native watch service, or polling if the native resources are exhausted
+				source = register.openEventSource(this, path, watchedFile);
+			}
 
-			// Register events
-			path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			while (Objects.nonNull(source)) {
+				source = watch(source, path, watchedFile);
+			}
+		} catch (IOException e) {
+			LOG.warn("Watcher on {} is stopped, the directory can not be watched: {}", path, e.getMessage());
+			Thread.currentThread().interrupt();
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			register.releaseEventSource(this);
+		}
+	}
 
+	/**
+	 * Poll events of the registered source until it is closed
+	 *
+	 * @return polling source if the watcher was demoted, native source if it was promoted, otherwise null
+	 */
+	private WatchEventSource watch(WatchEventSource source, Path path, Path watchedFile) throws IOException, InterruptedException {
+		WatcherRegister register = WatcherRegister.getRegister();
+		try (WatchEventSource watchService = source) {
 			// Add WatchService to the register watch services pool
-			WatcherRegister.getRegister().addWatchService(watchService);
+			register.addWatchService(watchService);
+
+			currentSource = watchService;
+			if (demoted || promoted || stopped) {
+				// Demoted, promoted or stopped before the source was published
+				closeCurrentSource();
+			}
 
 			boolean poll = true;
 			while (poll) {
 				poll = pollEvents(watchService);
 			}
-		} catch (IOException | InterruptedException | ClosedWatchServiceException e) {
-			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			if (stopped || (!demoted && !promoted)) {
+				throw e;
+			}
+		} finally {
+			currentSource = null;
+			register.removeWatchService(source);
+		}
+
+		if (stopped) {
+			return null;
+		}
+		if (demoted) {
+			demoted = false;
+			promoted = false;
+			return register.openPollingSource(this, path, watchedFile);
+		}
+		if (promoted) {
+			promoted = false;
+			return register.openEventSource(this, path, watchedFile);
+		}
+		return null;
+	}
+
+	/**
+	 * Stop watching and release the native or polling resources. A stopped watcher can not be started again
+	 * and rejects new listeners, the register creates a new one for the file.
+	 */
+	void stop() {
+		stopped = true;
+		closeCurrentSource();
+	}
+
+	/**
+	 * Close the current source, the watcher goes on with polling.
+	 * Used by the register for giving the native resources to another watcher.
+	 */
+	void demote() {
+		demoted = true;
+		closeCurrentSource();
+	}
+
+	/**
+	 * Close the current polling source, the watcher goes on with the native watch service.
+	 * Used by the register when the native resources are available again.
+	 */
+	void promote() {
+		promoted = true;
+		closeCurrentSource();
+	}
+
+	private void closeCurrentSource() {
+		WatchEventSource source = currentSource;
+		if (Objects.nonNull(source)) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				// do nothing
+			}
 		}
 	}
 
 	protected boolean pollEvents(WatchService watchService) throws InterruptedException {
 		WatchKey key = watchService.take();
+
+		// Wait for further events within the batch window adapted to the event rate
+		WatcherRegister register = WatcherRegister.getRegister();
+		long deadline = System.nanoTime() + batchWindow.getWindowNanos(
+				register.getMaxBatchLatencyNanos(), register.getBurstEventRate());
+		int maxBatchSize = register.getMaxBatchSize();
+
+		List<PathEvent> batch = new ArrayList<>();
+		boolean valid = collectEvents(key, batch);
+		while (valid && batch.size() < maxBatchSize) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || (key = watchService.poll(remaining, NANOSECONDS)) == null) {
+				break;
+			}
+			valid = collectEvents(key, batch);
+		}
+
+		batchWindow.record(batch.size());
+		if (!batch.isEmpty()) {
+			lastEventAt = System.nanoTime();
+		}
+		batch.forEach(event -> notifyListeners(event.kind, event.file));
+
+		if (!batch.isEmpty() && isPolling()) {
+			// Busy directory should get the native watch back
+			register.pollingWatcherActive(this);
+		}
+		return valid;
+	}
+
+	private boolean collectEvents(WatchKey key, List<PathEvent> batch) {
 		Path path = (Path) key.watchable();
-		key.pollEvents().stream()
-				.filter(event -> validateQualifier(path.resolve((Path) event.context()).toFile()))
-				.forEach(event ->
-					notifyListeners(event.kind(), path.resolve((Path) event.context()).toFile())
-				);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				// Events are lost, the key stays valid and the watcher goes on
+				LOG.warn("Event overflow on {}, some events are lost", path);
+				overflowCount.incrementAndGet();
+				continue;
+			}
+			File file = path.resolve((Path) event.context()).toFile();
+			if (validateQualifier(file)) {
+				batch.add(new PathEvent(event.kind(), file));
+			}
+		}
 		return key.reset();
 	}
 
@@ -102,39 +266,78 @@ public class FileWatcher implements Runnable {
 
 		LOG.debug("Handle file event %s on %s", kind, file.getName());
 
-		// Create unmodifiable list for prevent ConcurrentModificationException
+		// Copy-on-write list gives a snapshot, listeners can be added or removed during the dispatch
 		List<FileEventListener> unmodifiableListeners = Collections.unmodifiableList(listeners);
 
 		if (kind == ENTRY_CREATE) {
 			LOG.debug("Created: %s", file);
-			unmodifiableListeners.stream()
-					.filter(listener -> Objects.nonNull(listener))
-					.forEach(listener -> WatcherRegister.getRegister().executeInThreadPool(() -> listener.onCreated(event)));
 		} else if (kind == ENTRY_MODIFY) {
 			LOG.debug("Modified: %s", file);
-			unmodifiableListeners.stream()
-					.filter(listener -> Objects.nonNull(listener))
-					.forEach(listener -> WatcherRegister.getRegister().executeInThreadPool(() -> listener.onModified(event)));
 		} else if (kind == ENTRY_DELETE) {
 			LOG.debug("Deleted: %s", file);
-			unmodifiableListeners.stream()
-					.filter(listener -> Objects.nonNull(listener))
-					.forEach(listener -> WatcherRegister.getRegister().executeInThreadPool(() -> listener.onDeleted(event)));
+		} else {
+			return;
 		}
+
+		// Each listener receives events through its own mailbox, listeners removed after the snapshot have none
+		unmodifiableListeners.stream()
+				.filter(listener -> Objects.nonNull(listener))
+				.map(this::getMailbox)
+				.filter(mailbox -> Objects.nonNull(mailbox))
+				.forEach(mailbox -> mailbox.offer(kind, event));
 	}
 
 	public FileWatcher addListener(FileEventListener listener) {
+		return addListener(listener, ListenerPriority.NORMAL);
+	}
+
+	/**
+	 * Add listener served by the thread pool of the given priority class
+	 *
+	 * @param listener
+	 * @param priority
+	 * @return
+	 */
+	public FileWatcher addListener(FileEventListener listener, ListenerPriority priority) {
+		return addListener(listener, WatcherRegister.getRegister().getExecutor(priority));
+	}
+
+	/**
+	 * Add listener served by the dedicated executor
+	 *
+	 * @param listener
+	 * @param executor
+	 * @return
+	 */
+	public FileWatcher addListener(FileEventListener listener, Executor executor) {
+		checkNotStopped();
+		mailboxes.put(listener, newMailbox(listener, executor));
 		listeners.add(listener);
+		if (stopped) {
+			// Stopped meanwhile, the listener would never get events
+			removeListener(listener);
+			checkNotStopped();
+		}
 		return this;
 	}
 
+	private void checkNotStopped() {
+		if (stopped) {
+			throw new IllegalStateException("Watcher on " + file + " is stopped, get a new one from the WatcherRegister");
+		}
+	}
+
 	public FileWatcher removeListener(FileEventListener listener) {
 		listeners.remove(listener);
+		if (!listeners.contains(listener)) {
+			mailboxes.remove(listener);
+		}
 		return this;
 	}
 
 	public FileWatcher setListeners(List<FileEventListener> listeners) {
-		this.listeners = listeners;
+		this.listeners = new CopyOnWriteArrayList<>(listeners);
+		mailboxes.keySet().retainAll(this.listeners);
 		return this;
 	}
 
@@ -142,6 +345,46 @@ public class FileWatcher implements Runnable {
 		return listeners;
 	}
 
+	/**
+	 * Mailbox of the listener. Listeners without an explicit priority (set by {@link #setListeners(List)} etc.)
+	 * get a mailbox served by the {@link ListenerPriority#NORMAL} pool.
+	 *
+	 * @param listener
+	 * @return mailbox, null if the listener is not registered
+	 */
+	public ListenerMailbox getMailbox(FileEventListener listener) {
+		ListenerMailbox mailbox = mailboxes.get(listener);
+		if (Objects.nonNull(mailbox) || !listeners.contains(listener)) {
+			return mailbox;
+		}
+
+		mailbox = mailboxes.computeIfAbsent(listener,
+				key -> newMailbox(key, WatcherRegister.getRegister().getExecutor(ListenerPriority.NORMAL)));
+		if (!listeners.contains(listener)) {
+			// Removed meanwhile, do not keep the mailbox
+			mailboxes.remove(listener, mailbox);
+			return null;
+		}
+		return mailbox;
+	}
+
+	/**
+	 * @return mailboxes of the current listeners
+	 */
+	public List<ListenerMailbox> getMailboxes() {
+		Set<ListenerMailbox> result = new LinkedHashSet<>();
+		for (FileEventListener listener : listeners) {
+			if (Objects.nonNull(listener)) {
+				result.add(getMailbox(listener));
+			}
+		}
+		return new ArrayList<>(result);
+	}
+
+	private ListenerMailbox newMailbox(FileEventListener listener, Executor executor) {
+		return new ListenerMailbox(listener, executor, WatcherRegister.getRegister().getListenerMailboxCapacity());
+	}
+
 	private boolean validateQualifier(File file){
 		return !isFileWatcher || file.getAbsolutePath().equals(this.file.getAbsolutePath());
 	}
@@ -149,4 +392,49 @@ public class FileWatcher implements Runnable {
 	public String getWatcherKey(){
 		return file.getAbsolutePath();
 	}
+
+	/**
+	 * @return number of OVERFLOW events, i.e. how many times events were lost
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * @return true if the directory is registered and the watcher waits for its events
+	 */
+	public boolean isWatching() {
+		return Objects.nonNull(currentSource);
+	}
+
+	/**
+	 * @return true if the watcher polls the directory instead of the native watch service
+	 */
+	public boolean isPolling() {
+		return currentSource instanceof PollingWatchEventSource;
+	}
+
+	/**
+	 * @return time since the last dispatched event (since creation if there were no events), milliseconds
+	 */
+	public long getIdleMillis() {
+		return NANOSECONDS.toMillis(System.nanoTime() - lastEventAt);
+	}
+
+	/**
+	 * @return smoothed rate of the dispatched events, events per second
+	 */
+	public double getEventRate() {
+		return batchWindow.getEventRate();
+	}
+
+	private static final class PathEvent {
+		private final WatchEvent.Kind<?> kind;
+		private final File file;
+
+		private PathEvent(WatchEvent.Kind<?> kind, File file) {
+			this.kind = kind;
+			this.file = file;
+		}
+	}
 }
@@ -0,0 +1,191 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.nio.file.WatchEvent;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import com.sap.cx.es.samples.filewatch.event.FileEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Bounded queue of events for the single listener.
+ * Events are delivered to the listener one by one in order of arrival, so a stalled listener
+ * only backs up its own mailbox. If the mailbox is full new events are dropped and counted,
+ * see {@link #getDroppedEvents()}.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class ListenerMailbox {
+	private final static Logger LOG = LoggerFactory.getLogger(ListenerMailbox.class);
+
+	private final FileEventListener listener;
+	private final Executor executor;
+	private final BlockingQueue<Envelope> queue;
+
+	// Only one drain task per mailbox is allowed at a time
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	// Set while events are dropped, so a stalled listener is logged once and not on every event
+	private final AtomicBoolean full = new AtomicBoolean(false);
+
+	// Enqueue time of the event which is handled by the listener now, 0 if the listener is idle
+	private volatile long inFlightSince = 0;
+
+	public ListenerMailbox(FileEventListener listener, Executor executor, int capacity) {
+		this.listener = listener;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Put event to the mailbox and schedule delivery
+	 *
+	 * @param kind
+	 * @param event
+	 * @return false if the mailbox is full and the event was dropped
+	 */
+	public boolean offer(WatchEvent.Kind<?> kind, FileEvent event) {
+		if (!queue.offer(new Envelope(kind, event))) {
+			long count = dropped.incrementAndGet();
+			if (full.compareAndSet(false, true)) {
+				LOG.warn("Mailbox of listener {} is full, events are dropped until it drains (total dropped: {})",
+						listener, count);
+			}
+			return false;
+		}
+		if (full.get()) {
+			full.set(false);
+		}
+		schedule();
+		return true;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				// Executor is shut down, events remain in the mailbox
+				scheduled.set(false);
+			}
+		}
+	}
+
+	private void drain() {
+		try {
+			Envelope envelope;
+			while ((envelope = queue.poll()) != null) {
+				inFlightSince = envelope.enqueuedAt;
+				try {
+					dispatch(envelope);
+					delivered.incrementAndGet();
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					LOG.error("Listener " + listener + " failed on " + envelope.event.getFile(), e);
+				} finally {
+					inFlightSince = 0;
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			// An event could be added between the last poll and the flag reset
+			if (!queue.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	private void dispatch(Envelope envelope) {
+		if (envelope.kind == ENTRY_CREATE) {
+			listener.onCreated(envelope.event);
+		} else if (envelope.kind == ENTRY_MODIFY) {
+			listener.onModified(envelope.event);
+		} else if (envelope.kind == ENTRY_DELETE) {
+			listener.onDeleted(envelope.event);
+		}
+	}
+
+	public FileEventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return number of events waiting for delivery
+	 */
+	public int getPendingEvents() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of events handled by the listener without exception
+	 */
+	public long getDeliveredEvents() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return number of events on which the listener threw an exception
+	 */
+	public long getFailedEvents() {
+		return failed.get();
+	}
+
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	/**
+	 * Age of the oldest undelivered event including the one which is handled by the listener now.
+	 *
+	 * @return lag in milliseconds, 0 if the listener is up to date
+	 */
+	public long getLagMillis() {
+		long oldest = inFlightSince;
+		if (oldest == 0) {
+			Envelope head = queue.peek();
+			oldest = head != null ? head.enqueuedAt : 0;
+		}
+		return oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+	}
+
+	private static final class Envelope {
+		private final WatchEvent.Kind<?> kind;
+		private final FileEvent event;
+		private final long enqueuedAt = System.nanoTime();
+
+		private Envelope(WatchEvent.Kind<?> kind, FileEvent event) {
+			this.kind = kind;
+			this.event = event;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+/**
+ * Priority class of a listener. Each class is served by its own thread pool in the {@link WatcherRegister},
+ * so slow listeners of one class can not delay the listeners of another one.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public enum ListenerPriority {
+	/**
+	 * Latency critical listeners (security policy reload etc.)
+	 */
+	HIGH(Thread.MAX_PRIORITY),
+
+	/**
+	 * Default priority
+	 */
+	NORMAL(Thread.NORM_PRIORITY),
+
+	/**
+	 * Background listeners (indexing of large files etc.)
+	 */
+	LOW(Thread.MIN_PRIORITY);
+
+	private final int threadPriority;
+
+	ListenerPriority(int threadPriority) {
+		this.threadPriority = threadPriority;
+	}
+
+	public int getThreadPriority() {
+		return threadPriority;
+	}
+}
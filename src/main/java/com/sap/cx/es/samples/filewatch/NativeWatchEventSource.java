@@ -0,0 +1,65 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Event source backed by the default file system {@link WatchService} (inotify etc.)
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class NativeWatchEventSource implements WatchEventSource {
+	private final WatchService watchService;
+
+	public NativeWatchEventSource() throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	@Override
+	public WatchKey register(Path directory) throws IOException {
+		return directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+	}
+
+	@Override
+	public WatchKey poll() {
+		return watchService.poll();
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return watchService.poll(timeout, unit);
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		return watchService.take();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
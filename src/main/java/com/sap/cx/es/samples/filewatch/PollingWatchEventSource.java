@@ -0,0 +1,225 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Event source which scans registered directories with a fixed interval and compares them with the previous scan.
+ * Used as a fallback when native registration is not possible (kernel watch limits etc.),
+ * it needs no native resources and no extra threads: directories are scanned by the watcher thread
+ * while it waits for events. A directory registered for a single file only stats that file,
+ * so file watchers do not list the whole directory on each scan.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class PollingWatchEventSource extends BufferedWatchEventSource {
+	private final long intervalNanos;
+
+	// Directory -> file name -> modification stamp of the last scan
+	private final Map<Path, Map<Path, Stamp>> snapshots = new ConcurrentHashMap<>();
+
+	// Directory -> the only file name to scan, directories registered as a whole are absent
+	private final Map<Path, Path> files = new ConcurrentHashMap<>();
+
+	private volatile long nextScan;
+
+	public PollingWatchEventSource(long interval, TimeUnit unit) {
+		super(Integer.MAX_VALUE);
+		this.intervalNanos = unit.toNanos(interval);
+		this.nextScan = System.nanoTime() + intervalNanos;
+	}
+
+	@Override
+	public synchronized WatchKey register(Path directory) throws IOException {
+		WatchKey key = super.register(directory);
+		files.remove(directory.toAbsolutePath());
+		snapshots.put(directory.toAbsolutePath(), snapshot(directory.toAbsolutePath()));
+		return key;
+	}
+
+	/**
+	 * Register the directory for changes of a single file
+	 *
+	 * @param directory
+	 * @param fileName name of the file in the directory
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized WatchKey register(Path directory, Path fileName) throws IOException {
+		Path absolute = directory.toAbsolutePath();
+		if (Objects.nonNull(getKey(absolute)) && !files.containsKey(absolute)) {
+			// Already scanned as a whole
+			return getKey(absolute);
+		}
+		WatchKey key = super.register(absolute);
+		files.put(absolute, fileName.getFileName());
+		snapshots.put(absolute, snapshot(absolute));
+		return key;
+	}
+
+	@Override
+	public WatchKey poll() {
+		scanIfDue();
+		return super.poll();
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			scanIfDue();
+			long now = System.nanoTime();
+			WatchKey key = super.poll(Math.max(Math.min(deadline, nextScan) - now, 0), NANOSECONDS);
+			if (Objects.nonNull(key) || System.nanoTime() - deadline >= 0) {
+				return key;
+			}
+		}
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		WatchKey key;
+		do {
+			key = poll(intervalNanos, NANOSECONDS);
+		} while (Objects.isNull(key));
+		return key;
+	}
+
+	/**
+	 * Scan all registered directories now
+	 */
+	public synchronized void scan() {
+		checkOpen();
+		for (BufferedKey key : getKeys()) {
+			Path directory = key.watchable();
+			try {
+				Map<Path, Stamp> current = snapshot(directory);
+				Map<Path, Stamp> previous = snapshots.put(directory, current);
+				List<WatchEvent<?>> events = Objects.nonNull(previous) ? diff(previous, current) : new ArrayList<>();
+				if (!events.isEmpty()) {
+					key.add(events);
+				}
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				// Directory is gone, like the native watch service invalidate the key
+				snapshots.remove(directory);
+				key.invalidate();
+			} catch (IOException e) {
+				// Try again with the next scan
+			}
+		}
+		// Interval counts from the end of the scan, so a slow scan can not make the watcher scan non-stop
+		nextScan = System.nanoTime() + intervalNanos;
+	}
+
+	private synchronized void scanIfDue() {
+		if (System.nanoTime() - nextScan >= 0) {
+			scan();
+		}
+	}
+
+	private static List<WatchEvent<?>> diff(Map<Path, Stamp> previous, Map<Path, Stamp> current) {
+		List<WatchEvent<?>> events = new ArrayList<>();
+		for (Map.Entry<Path, Stamp> entry : current.entrySet()) {
+			Stamp stamp = previous.get(entry.getKey());
+			if (Objects.isNull(stamp)) {
+				events.add(event(ENTRY_CREATE, entry.getKey()));
+			} else if (!stamp.equals(entry.getValue())) {
+				events.add(event(ENTRY_MODIFY, entry.getKey()));
+			}
+		}
+		for (Path name : previous.keySet()) {
+			if (!current.containsKey(name)) {
+				events.add(event(ENTRY_DELETE, name));
+			}
+		}
+		return events;
+	}
+
+	private Map<Path, Stamp> snapshot(Path directory) throws IOException {
+		Map<Path, Stamp> snapshot = new HashMap<>();
+		Path fileName = files.get(directory);
+		if (Objects.nonNull(fileName)) {
+			try {
+				snapshot.put(fileName, new Stamp(Files.readAttributes(directory.resolve(fileName), BasicFileAttributes.class)));
+			} catch (NoSuchFileException e) {
+				// No file, check that the directory itself is still there
+				if (!Files.isDirectory(directory)) {
+					throw new NoSuchFileException(directory.toString());
+				}
+			}
+			return snapshot;
+		}
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream) {
+				try {
+					snapshot.put(path.getFileName(), new Stamp(Files.readAttributes(path, BasicFileAttributes.class)));
+				} catch (NoSuchFileException e) {
+					// Deleted during the scan
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	private static final class Stamp {
+		private final long modified;
+		private final long size;
+
+		private Stamp(BasicFileAttributes attributes) {
+			this.modified = attributes.lastModifiedTime().to(NANOSECONDS);
+			this.size = attributes.size();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Stamp)) {
+				return false;
+			}
+			Stamp stamp = (Stamp) o;
+			return modified == stamp.modified && size == stamp.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(modified, size);
+		}
+	}
+}
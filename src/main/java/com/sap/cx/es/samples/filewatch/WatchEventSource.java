@@ -0,0 +1,41 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Source of the watch events for {@link FileWatcher}.
+ * Default implementation is {@link NativeWatchEventSource}, others could be used for polling or simulation.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public interface WatchEventSource extends WatchService {
+
+	/**
+	 * Register directory for ENTRY_CREATE, ENTRY_MODIFY and ENTRY_DELETE events
+	 *
+	 * @param directory
+	 * @return key of the directory
+	 * @throws IOException
+	 */
+	WatchKey register(Path directory) throws IOException;
+}
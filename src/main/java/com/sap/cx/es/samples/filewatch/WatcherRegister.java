@@ -16,19 +16,38 @@ package com.sap.cx.es.samples.filewatch;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.istack.internal.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -40,24 +59,156 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * @copyright 2020 SAP
  */
 public class WatcherRegister {
-	protected static final List<WatchService> watchServices = new ArrayList<>();
+	private final static Logger LOG = LoggerFactory.getLogger(WatcherRegister.class);
+
+	protected static final List<WatchService> watchServices = new CopyOnWriteArrayList<>();
 
 	private static final WatcherRegister register = new WatcherRegister();
 	private final ConcurrentHashMap<String, FileWatcher> watchers = new ConcurrentHashMap<String, FileWatcher>();
+
+	// Watcher -> number of holders which got it by acquireWatcher
+	private final Map<FileWatcher, Integer> holders = new HashMap<>();
 	private final ExecutorService threadPool;
 
+	// Listener pools by priority class, NORMAL listeners share the watchers thread pool
+	private final Map<ListenerPriority, ExecutorService> listenerPools = new EnumMap<>(ListenerPriority.class);
+
+	private volatile int listenerMailboxCapacity = 1024;
+
+	// Poll loop batching: latency budget, batch size limit and the event rate which uses the whole budget
+	private volatile long maxBatchLatencyNanos = MILLISECONDS.toNanos(20);
+	private volatile int maxBatchSize = 512;
+	private volatile double burstEventRate = 1000;
+
+	// Native watch accounting: each native watcher holds an inotify instance and a watch
+	private final Set<FileWatcher> nativeWatchers = new HashSet<>();
+	private final Set<FileWatcher> pollingWatchers = ConcurrentHashMap.newKeySet();
+	private volatile int nativeWatcherLimit = readSystemLimit();
+	private volatile long pollingIntervalNanos = SECONDS.toNanos(2);
+	private volatile long idleDemotionMillis = SECONDS.toMillis(60);
+
+	// Source of events for new watchers, null for the native watch service with the polling fallback
+	private volatile Function<File, WatchEventSource> eventSourceFactory = null;
+
 	private WatcherRegister(){
 		final ThreadFactory threadFactory = new ThreadFactoryBuilder()
 				.setNameFormat("WatcherRegister-%d")
 				.setDaemon(true)
 				.build();
 		threadPool = Executors.newCachedThreadPool(threadFactory);
+
+		for (ListenerPriority priority : ListenerPriority.values()) {
+			if (priority == ListenerPriority.NORMAL) {
+				listenerPools.put(priority, threadPool);
+			} else {
+				listenerPools.put(priority, Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+						.setNameFormat("WatcherRegister-" + priority.name().toLowerCase() + "-%d")
+						.setPriority(priority.getThreadPriority())
+						.setDaemon(true)
+						.build()));
+			}
+		}
 	}
 
 	protected void executeInThreadPool(Runnable runnable){
 		threadPool.execute(runnable);
 	}
 
+	/**
+	 * Executor for listeners of the priority class
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public Executor getExecutor(ListenerPriority priority) {
+		return listenerPools.get(priority);
+	}
+
+	public int getListenerMailboxCapacity() {
+		return listenerMailboxCapacity;
+	}
+
+	/**
+	 * Max number of undelivered events per listener. Affects listeners added after the call.
+	 *
+	 * @param listenerMailboxCapacity
+	 */
+	public void setListenerMailboxCapacity(int listenerMailboxCapacity) {
+		if (listenerMailboxCapacity <= 0) {
+			throw new IllegalArgumentException("Mailbox capacity should be positive: " + listenerMailboxCapacity);
+		}
+		this.listenerMailboxCapacity = listenerMailboxCapacity;
+	}
+
+	public long getMaxBatchLatencyNanos() {
+		return maxBatchLatencyNanos;
+	}
+
+	/**
+	 * Max time a watcher waits for further events before dispatching the batch.
+	 * Zero disables batching, each event is dispatched immediately.
+	 *
+	 * @param maxBatchLatency
+	 * @param unit
+	 */
+	public void setMaxBatchLatency(long maxBatchLatency, TimeUnit unit) {
+		if (maxBatchLatency < 0) {
+			throw new IllegalArgumentException("Batch latency should not be negative: " + maxBatchLatency);
+		}
+		this.maxBatchLatencyNanos = unit.toNanos(maxBatchLatency);
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Max number of events dispatched in a single batch
+	 *
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("Batch size should be positive: " + maxBatchSize);
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public double getBurstEventRate() {
+		return burstEventRate;
+	}
+
+	/**
+	 * Event rate (events per second) at which the whole latency budget is used for batching.
+	 * Lower rate gives more throughput on moderate load, higher rate keeps latency small.
+	 *
+	 * @param burstEventRate
+	 */
+	public void setBurstEventRate(double burstEventRate) {
+		if (burstEventRate <= 0) {
+			throw new IllegalArgumentException("Burst event rate should be positive: " + burstEventRate);
+		}
+		this.burstEventRate = burstEventRate;
+	}
+
+	/**
+	 * Find listeners which fall behind, e.g. for alerting
+	 *
+	 * @param maxLagMillis
+	 * @return mailboxes with the lag greater than maxLagMillis
+	 */
+	public List<ListenerMailbox> getLaggingMailboxes(long maxLagMillis) {
+		List<ListenerMailbox> result = new ArrayList<>();
+		for (FileWatcher watcher : watchers.values()) {
+			for (ListenerMailbox mailbox : watcher.getMailboxes()) {
+				if (mailbox.getLagMillis() > maxLagMillis) {
+					result.add(mailbox);
+				}
+			}
+		}
+		return result;
+	}
+
 	public static WatcherRegister getRegister() {
 		return register;
 	}
@@ -70,17 +221,293 @@ public class WatcherRegister {
 		watchServices.add(watchService);
 	}
 
+	protected void removeWatchService(WatchService watchService){
+		watchServices.remove(watchService);
+	}
+
+	/**
+	 * Open registered native event source for the watcher. If the native limit is reached, the least active
+	 * native watcher idle for the demotion time gives its resources away and goes on with polling.
+	 * Otherwise, or if the native registration fails, the watcher gets a polling source.
+	 *
+	 * @param watcher
+	 * @param path
+	 * @param file watched file in the directory, null if the directory is watched as a whole
+	 * @return
+	 * @throws IOException if the directory can not be watched at all
+	 */
+	WatchEventSource openEventSource(FileWatcher watcher, Path path, Path file) throws IOException {
+		if (acquireNativeWatch(watcher)) {
+			WatchEventSource source = null;
+			try {
+				source = new NativeWatchEventSource();
+				source.register(path);
+				pollingWatchers.remove(watcher);
+				return source;
+			} catch (IOException e) {
+				if (Objects.nonNull(source)) {
+					source.close();
+				}
+				nativeRegistrationFailed(watcher, e);
+			}
+		}
+		return openPollingSource(watcher, path, file);
+	}
+
+	/**
+	 * @param watcher
+	 * @param path
+	 * @param file watched file in the directory, only this file is scanned; null if the directory is watched as a whole
+	 * @return
+	 * @throws IOException
+	 */
+	WatchEventSource openPollingSource(FileWatcher watcher, Path path, Path file) throws IOException {
+		PollingWatchEventSource source = new PollingWatchEventSource(pollingIntervalNanos, NANOSECONDS);
+		if (Objects.nonNull(file)) {
+			source.register(path, file);
+		} else {
+			source.register(path);
+		}
+		pollingWatchers.add(watcher);
+		LOG.warn("{} is degraded to polling every {}ms (native watchers: {} of {})", Objects.nonNull(file) ? file : path,
+				NANOSECONDS.toMillis(pollingIntervalNanos), getNativeWatcherCount(), nativeWatcherLimit);
+		return source;
+	}
+
+	/**
+	 * Forget the stopped watcher. Its native resources go to the most active polling watcher.
+	 *
+	 * @param watcher
+	 */
+	synchronized void releaseEventSource(FileWatcher watcher) {
+		boolean wasNative = nativeWatchers.remove(watcher);
+		pollingWatchers.remove(watcher);
+		if (wasNative) {
+			pollingWatchers.stream()
+					.filter(candidate -> !nativeWatchers.contains(candidate))
+					.max(Comparator.comparingDouble(FileWatcher::getEventRate)
+							.thenComparing(Comparator.comparingLong(FileWatcher::getIdleMillis).reversed()))
+					.ifPresent(this::promote);
+		}
+	}
+
+	/**
+	 * Polling watcher got events: move it to the native watch service if there is a free native slot
+	 * or a native watcher idle for the demotion time. So the busy directories are watched natively
+	 * and the least active ones are polled.
+	 *
+	 * @param watcher
+	 */
+	synchronized void pollingWatcherActive(FileWatcher watcher) {
+		if (!pollingWatchers.contains(watcher) || nativeWatchers.contains(watcher)) {
+			return;
+		}
+		if (nativeWatchers.size() < nativeWatcherLimit || demoteIdleWatcher()) {
+			promote(watcher);
+		}
+	}
+
+	private void promote(FileWatcher watcher) {
+		LOG.info("Watcher {} is promoted to the native watch service (event rate {}/s)", watcher.getWatcherKey(),
+				String.format("%.2f", watcher.getEventRate()));
+		// The native slot is reserved until the watcher opens its native source
+		nativeWatchers.add(watcher);
+		watcher.promote();
+	}
+
+	private synchronized boolean acquireNativeWatch(FileWatcher watcher) {
+		if (nativeWatchers.contains(watcher)) {
+			// Reserved by the promotion
+			return true;
+		}
+		if (nativeWatchers.size() >= nativeWatcherLimit && !demoteIdleWatcher()) {
+			return false;
+		}
+		nativeWatchers.add(watcher);
+		return true;
+	}
+
+	/**
+	 * Demote the least active native watcher if it is idle for the demotion time
+	 *
+	 * @return true if a native slot was freed
+	 */
+	private boolean demoteIdleWatcher() {
+		FileWatcher leastActive = nativeWatchers.stream()
+				.max(Comparator.comparingLong(FileWatcher::getIdleMillis))
+				.orElse(null);
+		if (Objects.isNull(leastActive) || leastActive.getIdleMillis() < idleDemotionMillis) {
+			return false;
+		}
+		LOG.info("Watcher {} is idle for {}ms, demoted to polling", leastActive.getWatcherKey(), leastActive.getIdleMillis());
+		nativeWatchers.remove(leastActive);
+		leastActive.demote();
+		return true;
+	}
+
+	private synchronized void nativeRegistrationFailed(FileWatcher watcher, IOException e) {
+		nativeWatchers.remove(watcher);
+
+		// Not a file problem (no such file, access denied etc.), so the system limit is lower than the configured one
+		if (!(e instanceof FileSystemException) && nativeWatchers.size() < nativeWatcherLimit) {
+			LOG.warn("Native registration failed with {} native watchers, limit is lowered: {}", nativeWatchers.size(), e.getMessage());
+			nativeWatcherLimit = nativeWatchers.size();
+		}
+	}
+
+	/**
+	 * @return number of watchers on the native watch service
+	 */
+	public synchronized int getNativeWatcherCount() {
+		return nativeWatchers.size();
+	}
+
+	/**
+	 * @return watchers degraded to polling
+	 */
+	public List<FileWatcher> getPollingWatchers() {
+		return new ArrayList<>(pollingWatchers);
+	}
+
+	/**
+	 * @return true if some watchers are degraded to polling
+	 */
+	public boolean isDegraded() {
+		return !pollingWatchers.isEmpty();
+	}
+
+	public int getNativeWatcherLimit() {
+		return nativeWatcherLimit;
+	}
+
+	/**
+	 * Max number of watchers on the native watch service. By default the inotify limits of the system
+	 * (fs.inotify.max_user_instances, fs.inotify.max_user_watches); it is lowered automatically
+	 * if the native registration fails below it.
+	 *
+	 * @param nativeWatcherLimit
+	 */
+	public void setNativeWatcherLimit(int nativeWatcherLimit) {
+		if (nativeWatcherLimit < 0) {
+			throw new IllegalArgumentException("Native watcher limit should not be negative: " + nativeWatcherLimit);
+		}
+		this.nativeWatcherLimit = nativeWatcherLimit;
+	}
+
+	public long getPollingIntervalNanos() {
+		return pollingIntervalNanos;
+	}
+
+	/**
+	 * Scan interval of the watchers degraded to polling. Affects watchers degraded after the call.
+	 *
+	 * @param pollingInterval
+	 * @param unit
+	 */
+	public void setPollingInterval(long pollingInterval, TimeUnit unit) {
+		if (pollingInterval <= 0) {
+			throw new IllegalArgumentException("Polling interval should be positive: " + pollingInterval);
+		}
+		this.pollingIntervalNanos = unit.toNanos(pollingInterval);
+	}
+
+	public long getIdleDemotionMillis() {
+		return idleDemotionMillis;
+	}
+
+	/**
+	 * How long a native watcher should be idle for giving its resources to a new watcher
+	 *
+	 * @param idleDemotion
+	 * @param unit
+	 */
+	public void setIdleDemotion(long idleDemotion, TimeUnit unit) {
+		if (idleDemotion < 0) {
+			throw new IllegalArgumentException("Idle demotion time should not be negative: " + idleDemotion);
+		}
+		this.idleDemotionMillis = unit.toMillis(idleDemotion);
+	}
+
+	private static int readSystemLimit() {
+		int limit = Integer.MAX_VALUE;
+		for (String name : new String[]{"max_user_instances", "max_user_watches"}) {
+			try {
+				// procfs reports zero file size, so read it line by line
+				List<String> lines = Files.readAllLines(Paths.get("/proc/sys/fs/inotify", name), StandardCharsets.UTF_8);
+				limit = Math.min(limit, Integer.parseInt(lines.get(0).trim()));
+			} catch (IOException | RuntimeException e) {
+				// Not Linux or not readable
+			}
+		}
+		return limit;
+	}
+
 	@NotNull
 	public synchronized FileWatcher createWatcher(@NotNull final File file) {
 		if (watchers.containsKey(file.getAbsolutePath())) {
 			return watchers.get(file.getAbsolutePath());
 		}
 
-		FileWatcher watcher = new FileWatcher(file);
+		Function<File, WatchEventSource> factory = eventSourceFactory;
+		FileWatcher watcher = new FileWatcher(file, Objects.nonNull(factory) ? factory.apply(file) : null);
 		watchers.put(file.getAbsolutePath(), watcher);
 		return watcher;
 	}
 
+	public Function<File, WatchEventSource> getEventSourceFactory() {
+		return eventSourceFactory;
+	}
+
+	/**
+	 * Source of events for the watchers created after the call (simulation in tests etc.).
+	 * The factory is called once per watcher with the watched file, each watcher owns and closes its source.
+	 * Null restores the native watch service with the polling fallback.
+	 *
+	 * @param eventSourceFactory
+	 */
+	public void setEventSourceFactory(Function<File, WatchEventSource> eventSourceFactory) {
+		this.eventSourceFactory = eventSourceFactory;
+	}
+
+	/**
+	 * Stop the watcher and remove it from the register
+	 *
+	 * @param watcher
+	 */
+	public synchronized void removeWatcher(@NotNull final FileWatcher watcher) {
+		watchers.remove(watcher.getWatcherKey(), watcher);
+		watcher.stop();
+	}
+
+	/**
+	 * Get the watcher of the file for a holder which releases it with {@link #releaseWatcher(FileWatcher)}
+	 *
+	 * @param file
+	 * @return
+	 */
+	@NotNull
+	public synchronized FileWatcher acquireWatcher(@NotNull final File file) {
+		FileWatcher watcher = createWatcher(file);
+		holders.merge(watcher, 1, Integer::sum);
+		return watcher;
+	}
+
+	/**
+	 * Release the watcher got by {@link #acquireWatcher(File)}. The watcher is stopped and removed
+	 * when its last holder releases it and it has no listeners, otherwise it keeps running for its listeners.
+	 *
+	 * @param watcher
+	 * @return true if the watcher was stopped
+	 */
+	public synchronized boolean releaseWatcher(@NotNull final FileWatcher watcher) {
+		Integer count = holders.computeIfPresent(watcher, (key, value) -> value > 1 ? value - 1 : null);
+		if (Objects.nonNull(count) || !watcher.getListeners().isEmpty()) {
+			return false;
+		}
+		removeWatcher(watcher);
+		return true;
+	}
+
 	/**
 	 * Use it for destroy WatchRegister under application shutdown process (ServletContextListener.contextDestroyed etc.)
 	 */
@@ -89,6 +516,11 @@ public class WatcherRegister {
 		closeAllWatchers();
 
 		// Wait listener execution
+		for (ExecutorService pool : WatcherRegister.getRegister().listenerPools.values()) {
+			if (pool != WatcherRegister.getRegister().threadPool) {
+				shutdownAndAwaitTermination(pool, 10, SECONDS);
+			}
+		}
 		shutdownAndAwaitTermination(WatcherRegister.getRegister().threadPool, 10, SECONDS);
 	}
 
@@ -98,6 +530,20 @@ public class WatcherRegister {
 	 * @return
 	 */
 	public static void closeAllWatchers() {
+		// Forget native and polling watchers first, so the stopped watchers do not promote each other
+		WatcherRegister instance = WatcherRegister.getRegister();
+		Set<FileWatcher> stopped = new HashSet<>(instance.watchers.values());
+		synchronized (instance) {
+			stopped.addAll(instance.nativeWatchers);
+			stopped.addAll(instance.pollingWatchers);
+			instance.holders.clear();
+			instance.nativeWatchers.clear();
+			instance.pollingWatchers.clear();
+		}
+
+		// Stop watchers, so a watcher switching between native and polling sources does not open a new one
+		stopped.forEach(FileWatcher::stop);
+
 		// Stop WatchServices
 		for (WatchService watchService : WatcherRegister.watchServices){
 			try {
@@ -111,8 +557,10 @@ public class WatcherRegister {
 		WatcherRegister.watchServices.clear();
 
 		// Clean watchers
-		WatcherRegister instance = WatcherRegister.getRegister();
-		instance.watchers.entrySet().stream().forEach(entry -> entry.getValue().getListeners().clear());
+		instance.watchers.entrySet().stream().forEach(entry -> {
+			entry.getValue().getListeners().clear();
+			entry.getValue().mailboxes.clear();
+		});
 		instance.watchers.clear();
 	}
 
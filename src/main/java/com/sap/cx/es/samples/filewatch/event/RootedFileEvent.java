@@ -0,0 +1,44 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ *
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ *
+ * SAP
+ *
+ * Moscow, Russian Federation
+ *
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.event;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * File event of a composite watcher, tagged with the logical roots it belongs to
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.event
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class RootedFileEvent extends FileEvent
+{
+	private final Set<File> roots;
+
+	public RootedFileEvent(File file, Set<File> roots){
+		super(file);
+		this.roots = Collections.unmodifiableSet(roots);
+	}
+
+	/**
+	 * @return roots as they were given to the composite watcher
+	 */
+	public Set<File> getRoots(){
+		return roots;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.loadgen;
+
+import java.io.File;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Events expected from the generated file operations.
+ * Expectations are registered before the operation, so a fast watcher can not outrun them.
+ * Repeated expectations of the same event are merged, like the watch service merges repeated events.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.loadgen
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class GroundTruth {
+	// Expected event -> operation time, System.nanoTime()
+	private final Map<String, Long> expected = new ConcurrentHashMap<>();
+
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong unexpected = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+
+	public void expect(WatchEvent.Kind<?> kind, File file) {
+		expected.putIfAbsent(key(kind, file), System.nanoTime());
+	}
+
+	/**
+	 * Forget expectation of the failed operation
+	 */
+	public void cancel(WatchEvent.Kind<?> kind, File file) {
+		expected.remove(key(kind, file));
+	}
+
+	/**
+	 * Match the received event
+	 *
+	 * @return latency in milliseconds, -1 if the event was not expected
+	 */
+	public long receive(WatchEvent.Kind<?> kind, File file) {
+		Long time = expected.remove(key(kind, file));
+		if (time == null) {
+			unexpected.incrementAndGet();
+			return -1;
+		}
+		matched.incrementAndGet();
+		return NANOSECONDS.toMillis(System.nanoTime() - time);
+	}
+
+	/**
+	 * Count expectations older than the timeout as lost events
+	 *
+	 * @param timeoutMillis
+	 * @return number of events lost by this sweep
+	 */
+	public long sweep(long timeoutMillis) {
+		long deadline = System.nanoTime() - MILLISECONDS.toNanos(timeoutMillis);
+		long count = 0;
+		for (Map.Entry<String, Long> entry : expected.entrySet()) {
+			if (entry.getValue() - deadline < 0 && expected.remove(entry.getKey(), entry.getValue())) {
+				++count;
+			}
+		}
+		lost.addAndGet(count);
+		return count;
+	}
+
+	public int getPending() {
+		return expected.size();
+	}
+
+	public long getMatched() {
+		return matched.get();
+	}
+
+	public long getUnexpected() {
+		return unexpected.get();
+	}
+
+	public long getLost() {
+		return lost.get();
+	}
+
+	private static String key(WatchEvent.Kind<?> kind, File file) {
+		return kind.name() + ':' + file.getAbsolutePath();
+	}
+}
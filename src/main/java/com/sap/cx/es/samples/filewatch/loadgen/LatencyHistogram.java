@@ -0,0 +1,88 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with 1ms buckets, latencies above the range are counted in the last bucket.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.loadgen
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class LatencyHistogram {
+	private final AtomicLongArray buckets;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param maxMillis upper bound of the exact range
+	 */
+	public LatencyHistogram(int maxMillis) {
+		this.buckets = new AtomicLongArray(maxMillis + 1);
+	}
+
+	public void record(long millis) {
+		int bucket = (int) Math.min(Math.max(millis, 0), buckets.length() - 1);
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		max.accumulateAndGet(millis, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile 0..100
+	 * @return latency in milliseconds, 0 if nothing is recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); ++i) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return i;
+			}
+		}
+		return buckets.length() - 1;
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); ++i) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("p50=%dms p90=%dms p99=%dms p99.9=%dms max=%dms",
+				getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9), getMax());
+	}
+}
@@ -0,0 +1,447 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import com.sap.cx.es.samples.filewatch.FileWatcher;
+import com.sap.cx.es.samples.filewatch.ListenerMailbox;
+import com.sap.cx.es.samples.filewatch.WatcherRegister;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import com.sap.cx.es.samples.filewatch.event.FileEventListener;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Load generator and soak test of the watchers.
+ * Creates N watched directories via {@link WatcherRegister#createWatcher(File)}, generates
+ * create/modify/delete/rename storms in them and reports throughput, latency percentiles,
+ * lost events (checked against the ground truth), thread count, heap and allocation rate.
+ * <p>
+ * Run: {@code mvn -Ploadgen compile exec:java -Dexec.args="--dirs=1000 --rate=5000 --duration=3600"}
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.loadgen
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class LoadGenerator {
+	private static final byte[] PAYLOAD = "Some String\n".getBytes(StandardCharsets.UTF_8);
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("root", new File("/dev/shm").isDirectory() ? "/dev/shm" : System.getProperty("java.io.tmpdir"));
+		DEFAULTS.put("dirs", "100");
+		DEFAULTS.put("files", "100");
+		DEFAULTS.put("rate", "1000");
+		DEFAULTS.put("threads", "4");
+		DEFAULTS.put("mix", "30,30,30,10");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("report", "10");
+		DEFAULTS.put("lostTimeout", "5000");
+	}
+
+	private enum Operation {CREATE, MODIFY, DELETE, RENAME}
+
+	private final File root;
+	private final int dirCount;
+	private final int maxFilesPerDir;
+	private final double rate;
+	private final int threadCount;
+	private final int[] mix;
+	private final long durationSeconds;
+	private final long reportSeconds;
+	private final long lostTimeoutMillis;
+
+	private final List<File> directories = new ArrayList<>();
+	private final List<FileWatcher> watchers = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+
+	private final GroundTruth truth = new GroundTruth();
+	private final LatencyHistogram intervalLatency = new LatencyHistogram(60_000);
+	private final LatencyHistogram totalLatency = new LatencyHistogram(60_000);
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong failedOperations = new AtomicLong();
+	private final AtomicLong receivedEvents = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	// Thread id -> allocated bytes at the last sample, see allocatedBytes()
+	private Map<Long, Long> threadAllocatedBytes = new HashMap<>();
+	private long totalAllocatedBytes = 0;
+
+	public LoadGenerator(Map<String, String> options) {
+		this.root = new File(options.get("root"), "filewatch-load-" + System.currentTimeMillis());
+		this.dirCount = Integer.parseInt(options.get("dirs"));
+		this.maxFilesPerDir = Integer.parseInt(options.get("files"));
+		this.rate = Double.parseDouble(options.get("rate"));
+		this.threadCount = Math.min(Integer.parseInt(options.get("threads")), dirCount);
+		this.mix = Stream.of(options.get("mix").split(",")).mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+		this.durationSeconds = Long.parseLong(options.get("duration"));
+		this.reportSeconds = Long.parseLong(options.get("report"));
+		this.lostTimeoutMillis = Long.parseLong(options.get("lostTimeout"));
+
+		if (mix.length != Operation.values().length) {
+			throw new IllegalArgumentException("Mix should have 4 weights (create,modify,delete,rename): " + options.get("mix"));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>(DEFAULTS);
+		for (String arg : args) {
+			String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+			if (pair.length != 2 || !DEFAULTS.containsKey(pair[0])) {
+				System.out.println("Usage: LoadGenerator [--option=value ...]\nOptions and defaults: " + DEFAULTS);
+				return;
+			}
+			options.put(pair[0], pair[1]);
+		}
+		new LoadGenerator(options).run();
+	}
+
+	public void run() throws IOException, InterruptedException {
+		System.out.printf("Options: root=%s dirs=%d files=%d rate=%.0f/s threads=%d mix=%s duration=%ds%n",
+				root, dirCount, maxFilesPerDir, rate, threadCount, Arrays.toString(mix),
+				durationSeconds);
+		System.out.printf("Limits: max_user_watches=%s max_user_instances=%s max_queued_events=%s%n",
+				readLimit("max_user_watches"), readLimit("max_user_instances"), readLimit("max_queued_events"));
+
+		try {
+			startWatchers();
+			startWorkers();
+
+			long start = System.nanoTime();
+			long end = start + SECONDS.toNanos(durationSeconds);
+			Snapshot first = new Snapshot(start);
+			Snapshot last = first;
+			while (System.nanoTime() < end) {
+				Thread.sleep(Math.min(SECONDS.toMillis(reportSeconds), NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+				truth.sweep(lostTimeoutMillis);
+				Snapshot current = new Snapshot(System.nanoTime());
+				report(start, last, current, intervalLatency);
+				intervalLatency.reset();
+				last = current;
+			}
+
+			stopWorkers();
+
+			// Give the watchers time to deliver the rest of events
+			long deadline = System.nanoTime() + MILLISECONDS.toNanos(lostTimeoutMillis);
+			while (truth.getPending() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(100);
+			}
+			truth.sweep(0);
+
+			System.out.println("Summary:");
+			report(start, first, new Snapshot(System.nanoTime()), totalLatency);
+			System.out.printf("Unexpected events (coalesced, modify on create etc.): %d, failed operations: %d%n",
+					truth.getUnexpected(), failedOperations.get());
+		} finally {
+			running = false;
+			WatcherRegister.stopWatcherRegister();
+			deleteTree(root.toPath());
+		}
+	}
+
+	private void startWatchers() throws IOException, InterruptedException {
+		FileEventListener listener = new GroundTruthListener();
+		long start = System.nanoTime();
+		for (int i = 0; i < dirCount; ++i) {
+			File dir = new File(root, "d" + i);
+			Files.createDirectories(dir.toPath());
+			directories.add(dir);
+
+			FileWatcher watcher = WatcherRegister.getRegister().createWatcher(dir);
+			watcher.addListener(listener).watch();
+			watchers.add(watcher);
+		}
+		System.out.printf("Created %d watchers in %dms%n", dirCount, NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		// Watchers register directories asynchronously, operations before the registration would be lost
+		WatcherRegister register = WatcherRegister.getRegister();
+		long deadline = System.nanoTime() + MILLISECONDS.toNanos(Math.max(lostTimeoutMillis, 10_000));
+		long registered;
+		while ((registered = watchers.stream().filter(FileWatcher::isWatching).count()) < dirCount
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		System.out.printf("Registered %d of %d watchers in %dms (native=%d polling=%d)%n", registered, dirCount,
+				NANOSECONDS.toMillis(System.nanoTime() - start), register.getNativeWatcherCount(),
+				register.getPollingWatchers().size());
+	}
+
+	private void startWorkers() {
+		for (int t = 0; t < threadCount; ++t) {
+			// Each directory is owned by a single worker, so the worker knows its files without locking
+			List<File> owned = new ArrayList<>();
+			for (int i = t; i < directories.size(); i += threadCount) {
+				owned.add(directories.get(i));
+			}
+			final int index = t;
+			Thread worker = new Thread(() -> generate(index, owned, rate / threadCount), "LoadGenerator-" + t);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	private void stopWorkers() throws InterruptedException {
+		running = false;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	private void generate(int index, List<File> owned, double workerRate) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Map<File, List<File>> files = new HashMap<>();
+		owned.forEach(dir -> files.put(dir, new ArrayList<>()));
+
+		long period = (long) (SECONDS.toNanos(1) / workerRate);
+		long next = System.nanoTime();
+		long sequence = 0;
+		while (running) {
+			File dir = owned.get(random.nextInt(owned.size()));
+			List<File> existing = files.get(dir);
+			Operation operation = nextOperation(random, existing.size());
+			try {
+				switch (operation) {
+					case CREATE:
+						File created = new File(dir, "f" + index + "-" + sequence++);
+						execute(ENTRY_CREATE, created, () -> Files.write(created.toPath(), PAYLOAD, StandardOpenOption.CREATE_NEW));
+						existing.add(created);
+						break;
+					case MODIFY:
+						File modified = existing.get(random.nextInt(existing.size()));
+						execute(ENTRY_MODIFY, modified, () -> Files.write(modified.toPath(), PAYLOAD, StandardOpenOption.APPEND));
+						break;
+					case DELETE:
+						File deleted = removeRandom(existing, random);
+						execute(ENTRY_DELETE, deleted, () -> Files.delete(deleted.toPath()));
+						break;
+					case RENAME:
+						File source = removeRandom(existing, random);
+						File target = new File(dir, "f" + index + "-" + sequence++);
+						truth.expect(ENTRY_DELETE, source);
+						try {
+							execute(ENTRY_CREATE, target, () -> Files.move(source.toPath(), target.toPath()));
+						} catch (IOException e) {
+							// Source is not moved, its delete is not expected either
+							truth.cancel(ENTRY_DELETE, source);
+							existing.add(source);
+							throw e;
+						}
+						existing.add(target);
+						break;
+				}
+				operations.incrementAndGet();
+			} catch (IOException e) {
+				failedOperations.incrementAndGet();
+			}
+
+			next += period;
+			long now = System.nanoTime();
+			if (next > now) {
+				LockSupport.parkNanos(next - now);
+			} else if (now - next > SECONDS.toNanos(1)) {
+				// Do not try to catch up more than a second of the schedule
+				next = now;
+			}
+		}
+	}
+
+	private Operation nextOperation(ThreadLocalRandom random, int existing) {
+		int total = 0;
+		for (int weight : mix) {
+			total += weight;
+		}
+		int value = random.nextInt(total);
+		Operation operation = Operation.values()[0];
+		for (int i = 0; i < mix.length; ++i) {
+			if (value < mix[i]) {
+				operation = Operation.values()[i];
+				break;
+			}
+			value -= mix[i];
+		}
+
+		if (existing == 0) {
+			return Operation.CREATE;
+		}
+		if (existing >= maxFilesPerDir && operation == Operation.CREATE) {
+			return Operation.DELETE;
+		}
+		return operation;
+	}
+
+	private static File removeRandom(List<File> files, ThreadLocalRandom random) {
+		int index = random.nextInt(files.size());
+		File file = files.get(index);
+		files.set(index, files.get(files.size() - 1));
+		files.remove(files.size() - 1);
+		return file;
+	}
+
+	private void execute(WatchEvent.Kind<?> kind, File file, FileOperation operation) throws IOException {
+		// Expectation goes first, so the event can not be received before it
+		truth.expect(kind, file);
+		try {
+			operation.execute();
+		} catch (IOException e) {
+			truth.cancel(kind, file);
+			throw e;
+		}
+	}
+
+	private void report(long start, Snapshot from, Snapshot to, LatencyHistogram latency) {
+		double seconds = Math.max(NANOSECONDS.toMillis(to.time - from.time), 1) / 1000.0;
+		long overflows = 0;
+		long dropped = 0;
+		long maxLag = 0;
+		for (FileWatcher watcher : watchers) {
+			overflows += watcher.getOverflowCount();
+			for (ListenerMailbox mailbox : watcher.getMailboxes()) {
+				dropped += mailbox.getDroppedEvents();
+				maxLag = Math.max(maxLag, mailbox.getLagMillis());
+			}
+		}
+
+		System.out.printf("[%6ds] ops=%d (%.0f/s) events=%d (%.0f/s) matched=%d lost=%d pending=%d latency: %s | "
+						+ "threads=%d heap=%dMB alloc=%s overflows=%d dropped=%d maxLag=%dms native=%d/%d polling=%d%n",
+				NANOSECONDS.toSeconds(to.time - start),
+				to.operations - from.operations, (to.operations - from.operations) / seconds,
+				to.received - from.received, (to.received - from.received) / seconds,
+				truth.getMatched(), truth.getLost(), truth.getPending(), latency,
+				to.threads, to.heapBytes >> 20,
+				to.allocatedBytes < 0 ? "n/a" : String.format("%.1fMB/s", (to.allocatedBytes - from.allocatedBytes) / seconds / (1 << 20)),
+				overflows, dropped, maxLag, WatcherRegister.getRegister().getNativeWatcherCount(),
+				WatcherRegister.getRegister().getNativeWatcherLimit(), WatcherRegister.getRegister().getPollingWatchers().size());
+	}
+
+	private static String readLimit(String name) {
+		try {
+			// procfs reports zero file size, so read it line by line
+			return Files.readAllLines(Paths.get("/proc/sys/fs/inotify", name), StandardCharsets.UTF_8).get(0).trim();
+		} catch (IOException | IndexOutOfBoundsException e) {
+			return "n/a";
+		}
+	}
+
+	private static void deleteTree(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/**
+	 * Number of bytes allocated since the first call, -1 if not supported by the JVM.
+	 * The JVM only reports live threads, so the growth of each thread is accumulated by its id
+	 * and pool threads which expire keep their share. Allocations of a thread after the last
+	 * call before its end are not seen.
+	 */
+	private synchronized long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) bean;
+		if (!extended.isThreadAllocatedMemorySupported() || !extended.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+
+		long[] ids = bean.getAllThreadIds();
+		long[] bytes = extended.getThreadAllocatedBytes(ids);
+		Map<Long, Long> current = new HashMap<>();
+		for (int i = 0; i < ids.length; ++i) {
+			if (bytes[i] >= 0) {
+				current.put(ids[i], bytes[i]);
+				totalAllocatedBytes += bytes[i] - threadAllocatedBytes.getOrDefault(ids[i], 0L);
+			}
+		}
+		// Ended threads are dropped, their allocations stay in the total
+		threadAllocatedBytes = current;
+		return totalAllocatedBytes;
+	}
+
+	private interface FileOperation {
+		void execute() throws IOException;
+	}
+
+	private final class Snapshot {
+		private final long time;
+		private final long operations = LoadGenerator.this.operations.get();
+		private final long received = receivedEvents.get();
+		private final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		private final long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		private final long allocatedBytes = allocatedBytes();
+
+		private Snapshot(long time) {
+			this.time = time;
+		}
+	}
+
+	private final class GroundTruthListener implements FileEventListener {
+		@Override
+		public void onCreated(FileEvent event) {
+			received(ENTRY_CREATE, event.getFile());
+		}
+
+		@Override
+		public void onModified(FileEvent event) {
+			received(ENTRY_MODIFY, event.getFile());
+		}
+
+		@Override
+		public void onDeleted(FileEvent event) {
+			received(ENTRY_DELETE, event.getFile());
+		}
+
+		private void received(WatchEvent.Kind<?> kind, File file) {
+			receivedEvents.incrementAndGet();
+			long latency = truth.receive(kind, file);
+			if (latency >= 0) {
+				intervalLatency.record(latency);
+				totalLatency.record(latency);
+			}
+		}
+	}
+}
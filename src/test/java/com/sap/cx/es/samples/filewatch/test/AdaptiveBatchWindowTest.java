@@ -0,0 +1,87 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.AdaptiveBatchWindow;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class AdaptiveBatchWindowTest {
+	private static final long BUDGET = MILLISECONDS.toNanos(20);
+
+	/**
+	 * Window should grow under an event storm and shrink back when the watcher is idle
+	 */
+	@Test
+	public void testBW_followsEventRate() {
+		AdaptiveBatchWindow window = new AdaptiveBatchWindow();
+		assertEquals(0, window.getWindowNanos(BUDGET, 1000));
+
+		// Storm: 100 events every 10ms
+		long time = SECONDS.toNanos(1);
+		for (int i = 0; i < 50; ++i) {
+			window.record(100, time);
+			time += MILLISECONDS.toNanos(10);
+		}
+		assertTrue(window.getEventRate(time) > 9000);
+		assertEquals(BUDGET, window.getWindowNanos(BUDGET, 1000, time));
+
+		// Idle: single events once a minute
+		for (int i = 0; i < 30; ++i) {
+			time += SECONDS.toNanos(60);
+			window.record(1, time);
+		}
+		assertTrue(window.getWindowNanos(BUDGET, 1000, time) < MILLISECONDS.toNanos(1));
+
+		// Batching is disabled by zero budget
+		assertEquals(0, window.getWindowNanos(0, 1000, time));
+	}
+
+	/**
+	 * Event after a long silence should not wait for the storm window, nor should the events next to it
+	 */
+	@Test
+	public void testBW_idleAfterStorm() {
+		AdaptiveBatchWindow window = new AdaptiveBatchWindow();
+
+		// Storm: 100 events every 10ms
+		long time = SECONDS.toNanos(1);
+		for (int i = 0; i < 50; ++i) {
+			window.record(100, time);
+			time += MILLISECONDS.toNanos(10);
+		}
+		assertEquals(BUDGET, window.getWindowNanos(BUDGET, 1000, time));
+
+		// An hour of silence, then a single event
+		time += SECONDS.toNanos(3600);
+		assertTrue(window.getWindowNanos(BUDGET, 1000, time) < MILLISECONDS.toNanos(1));
+
+		// A few single events a second apart should not bring the storm window back
+		for (int i = 0; i < 3; ++i) {
+			window.record(1, time);
+			time += SECONDS.toNanos(1);
+			assertTrue(window.getWindowNanos(BUDGET, 1000, time) < MILLISECONDS.toNanos(1));
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.CompositeWatcher;
+import com.sap.cx.es.samples.filewatch.FileAdapter;
+import com.sap.cx.es.samples.filewatch.FileWatcher;
+import com.sap.cx.es.samples.filewatch.WatcherRegister;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import com.sap.cx.es.samples.filewatch.event.RootedFileEvent;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class CompositeWatcherTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Overlapping roots (the same directory, a link to it, a file in it) should be registered once
+	 * and produce a single event tagged with all of them
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testCW_overlappingRoots() throws IOException, InterruptedException {
+		File config = folder.newFolder("config");
+		File plugins = folder.newFolder("plugins");
+		File link = new File(folder.getRoot(), "link");
+		Files.createSymbolicLink(link.toPath(), config.toPath());
+		File settings = new File(config, "settings.txt");
+
+		final List<RootedFileEvent> created = new ArrayList<>();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		CompositeWatcher watcher = new CompositeWatcher(Arrays.asList(config, link, settings, plugins, new File(config, ".")));
+		watcher.addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				created.add((RootedFileEvent) event);
+				if (event.getFile().getName().equals("marker.txt")) {
+					done.countDown();
+				}
+			}
+		}).watch();
+
+		assertEquals(2, watcher.getDirectories().size());
+		FileWatcher physical = WatcherRegister.getRegister().createWatcher(config.getCanonicalFile());
+		assertEquals(1, physical.getListeners().size());
+
+		await(watcher::isWatching);
+		write(settings);
+		write(new File(config, "marker.txt"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		List<String> names = new ArrayList<>();
+		created.forEach(event -> names.add(event.getFile().getName()));
+		assertEquals(Arrays.asList("settings.txt", "marker.txt"), names);
+
+		assertEquals(new HashSet<>(Arrays.asList(config, link, settings, new File(config, "."))), created.get(0).getRoots());
+		assertEquals(new HashSet<>(Arrays.asList(config, link, new File(config, "."))), created.get(1).getRoots());
+
+		// Physical watchers without other holders and listeners are stopped on close
+		watcher.close();
+		await(() -> !physical.isWatching());
+		assertNotSame(physical, WatcherRegister.getRegister().createWatcher(config.getCanonicalFile()));
+		try {
+			physical.addListener(new FileAdapter() {
+			});
+			fail("Stopped watcher should reject listeners");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Directory shared by two composites should be watched until both are closed
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testCW_sharedByComposites() throws IOException, InterruptedException {
+		File config = folder.newFolder("config");
+		final CountDownLatch done = new CountDownLatch(1);
+
+		CompositeWatcher first = new CompositeWatcher(Arrays.asList(config)).watch();
+		CompositeWatcher second = new CompositeWatcher(Arrays.asList(config)).addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				done.countDown();
+			}
+		}).watch();
+		await(second::isWatching);
+		FileWatcher physical = WatcherRegister.getRegister().createWatcher(config.getCanonicalFile());
+
+		first.close();
+		assertTrue(physical.isWatching());
+		write(new File(config, "test.txt"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		second.close();
+		await(() -> !physical.isWatching());
+	}
+
+	/**
+	 * Physical watcher shared with another listener should keep watching after close
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testCW_sharedDirectory() throws IOException, InterruptedException {
+		File config = folder.newFolder("config");
+		final CountDownLatch done = new CountDownLatch(1);
+
+		FileWatcher shared = WatcherRegister.getRegister().createWatcher(config.getCanonicalFile());
+		shared.addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				done.countDown();
+			}
+		});
+
+		CompositeWatcher watcher = new CompositeWatcher(Arrays.asList(config)).watch();
+		await(watcher::isWatching);
+		watcher.close();
+
+		assertTrue(shared.isWatching());
+		assertEquals(1, shared.getListeners().size());
+		write(new File(config, "test.txt"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Condition is not met in 5 seconds", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void write(File file) throws IOException {
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write("Some String");
+		}
+	}
+
+	@After
+	public void closeAllWatchers() {
+		WatcherRegister.closeAllWatchers();
+	}
+}
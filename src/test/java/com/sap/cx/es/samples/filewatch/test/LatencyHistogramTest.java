@@ -0,0 +1,50 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.loadgen.LatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testLH_percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram(1000);
+		assertEquals(0, histogram.getPercentile(99));
+
+		for (int i = 1; i <= 100; ++i) {
+			histogram.record(i);
+		}
+		histogram.record(5000);
+
+		assertEquals(101, histogram.getCount());
+		assertEquals(51, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+		assertEquals(1000, histogram.getPercentile(100));
+		assertEquals(5000, histogram.getMax());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+}
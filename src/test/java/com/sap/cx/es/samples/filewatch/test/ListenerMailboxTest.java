@@ -0,0 +1,127 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.FileAdapter;
+import com.sap.cx.es.samples.filewatch.ListenerMailbox;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class ListenerMailboxTest {
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	/**
+	 * Stalled listener should not delay another listener and should report its lag
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testLM_isolation() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch fastDone = new CountDownLatch(3);
+		FileEvent event = new FileEvent(new File("test.txt"));
+
+		ListenerMailbox slow = new ListenerMailbox(new FileAdapter() {
+			public void onModified(FileEvent event) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, executor, 2);
+		ListenerMailbox fast = new ListenerMailbox(new FileAdapter() {
+			public void onModified(FileEvent event) {
+				fastDone.countDown();
+			}
+		}, executor, 3);
+
+		// The first event is in flight before the rest are offered
+		slow.offer(ENTRY_MODIFY, event);
+		fast.offer(ENTRY_MODIFY, event);
+		assertTrue(entered.await(1, TimeUnit.SECONDS));
+		for (int i = 1; i < 3; ++i) {
+			slow.offer(ENTRY_MODIFY, event);
+			fast.offer(ENTRY_MODIFY, event);
+		}
+
+		assertTrue(fastDone.await(1, TimeUnit.SECONDS));
+		assertEquals(0, fast.getDroppedEvents());
+		assertEquals(0, fast.getLagMillis());
+
+		// One event in flight, two in the mailbox, the next one is dropped
+		assertFalse(slow.offer(ENTRY_MODIFY, event));
+		assertEquals(2, slow.getPendingEvents());
+		assertEquals(1, slow.getDroppedEvents());
+
+		// Lag is measured in milliseconds, the in-flight event is at least as old as the sleep
+		Thread.sleep(5);
+		assertTrue(slow.getLagMillis() >= 5);
+
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(3, slow.getDeliveredEvents());
+		assertEquals(0, slow.getLagMillis());
+	}
+
+	/**
+	 * Events on which the listener threw should be counted as failed, not delivered
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testLM_failedEvents() throws InterruptedException {
+		ListenerMailbox mailbox = new ListenerMailbox(new FileAdapter() {
+			public void onModified(FileEvent event) {
+				if (event.getFile().getName().startsWith("bad")) {
+					throw new IllegalStateException("Listener failure");
+				}
+			}
+		}, executor, 10);
+
+		mailbox.offer(ENTRY_MODIFY, new FileEvent(new File("bad.txt")));
+		mailbox.offer(ENTRY_MODIFY, new FileEvent(new File("good.txt")));
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(1, mailbox.getDeliveredEvents());
+		assertEquals(1, mailbox.getFailedEvents());
+		assertEquals(0, mailbox.getLagMillis());
+	}
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
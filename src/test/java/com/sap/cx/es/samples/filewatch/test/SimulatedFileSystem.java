@@ -0,0 +1,91 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.WatchEventSource;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Event source factory for {@link com.sap.cx.es.samples.filewatch.WatcherRegister#setEventSourceFactory(Function)}.
+ * Every watcher of the register gets its own {@link SimulatedWatchEventSource}, injected events go to all sources
+ * which registered the directory, like inotify events go to all instances watching it.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class SimulatedFileSystem implements Function<File, WatchEventSource> {
+	private final List<SimulatedWatchEventSource> sources = new CopyOnWriteArrayList<>();
+
+	@Override
+	public WatchEventSource apply(File file) {
+		SimulatedWatchEventSource source = new SimulatedWatchEventSource();
+		sources.add(source);
+		return source;
+	}
+
+	/**
+	 * Wait until all sources created so far register the directory
+	 *
+	 * @param directory
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitRegistration(Path directory, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (SimulatedWatchEventSource source : sources) {
+			if (!source.awaitRegistration(directory, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Inject event on the file
+	 *
+	 * @param kind
+	 * @param file
+	 */
+	public void inject(WatchEvent.Kind<Path> kind, Path file) {
+		injectAll(file.toAbsolutePath().getParent(),
+				Collections.singletonList(SimulatedWatchEventSource.event(kind, file.getFileName())));
+	}
+
+	/**
+	 * Inject events atomically into every source which registered the directory
+	 *
+	 * @param directory
+	 * @param events events with a file name context
+	 */
+	public void injectAll(Path directory, List<WatchEvent<Path>> events) {
+		for (SimulatedWatchEventSource source : sources) {
+			if (source.isRegistered(directory)) {
+				source.injectAll(directory, events);
+			}
+		}
+	}
+}
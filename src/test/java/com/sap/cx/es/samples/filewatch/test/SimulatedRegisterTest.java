@@ -0,0 +1,206 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.FileAdapter;
+import com.sap.cx.es.samples.filewatch.FileWatcher;
+import com.sap.cx.es.samples.filewatch.WatcherRegister;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.junit.Assert.*;
+
+/**
+ * Register scenarios of {@link FileWatcherTest} on the simulated event sources, without waits for the disk.
+ * FileWatcherTest keeps them on the native watch service as integration tests.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class SimulatedRegisterTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final WatcherRegister register = WatcherRegister.getRegister();
+	private final SimulatedFileSystem fileSystem = new SimulatedFileSystem();
+
+	@Before
+	public void simulateEvents() {
+		WatcherRegister.closeAllWatchers();
+		register.setEventSourceFactory(fileSystem);
+	}
+
+	/**
+	 * Create-Modify-Delete events should come in order
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSimWR_cmdEvents() throws IOException, InterruptedException {
+		final List<String> received = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch done = new CountDownLatch(3);
+
+		register.createWatcher(folder.getRoot()).addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				received.add("created " + event.getFile().getName());
+				done.countDown();
+			}
+
+			public void onModified(FileEvent event) {
+				received.add("modified " + event.getFile().getName());
+				done.countDown();
+			}
+
+			public void onDeleted(FileEvent event) {
+				received.add("deleted " + event.getFile().getName());
+				done.countDown();
+			}
+		}).watch();
+		assertTrue(fileSystem.awaitRegistration(folder.getRoot().toPath(), 5, TimeUnit.SECONDS));
+
+		Path file = folder.getRoot().toPath().resolve("test.txt");
+		fileSystem.inject(ENTRY_CREATE, file);
+		fileSystem.inject(ENTRY_MODIFY, file);
+		fileSystem.inject(ENTRY_DELETE, file);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("created test.txt", "modified test.txt", "deleted test.txt"), received);
+	}
+
+	/**
+	 * Watchers on the same file should be a single watcher notifying all listeners
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSimWR_sharedWatcher() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(2);
+		FileAdapter listener = new FileAdapter() {
+			public void onModified(FileEvent event) {
+				done.countDown();
+			}
+		};
+
+		FileWatcher watcher = register.createWatcher(folder.getRoot());
+		watcher.addListener(listener).watch();
+		FileWatcher watcher2 = register.createWatcher(new File(folder.getRoot().getPath()));
+		watcher2.addListener(listener).watch();
+
+		assertSame(watcher, watcher2);
+		assertEquals(2, watcher.getListeners().size());
+		assertTrue(fileSystem.awaitRegistration(folder.getRoot().toPath(), 5, TimeUnit.SECONDS));
+
+		fileSystem.inject(ENTRY_MODIFY, folder.getRoot().toPath().resolve("test.txt"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Volume test. One watcher on each of 1000 files of a directory, each watcher gets the event of its file only.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSimWR_1000watchers() throws IOException, InterruptedException {
+		int N = 1000;
+		final CountDownLatch done = new CountDownLatch(N);
+		final CountDownLatch foreign = new CountDownLatch(1);
+
+		List<WatchEvent<Path>> events = new ArrayList<>(N);
+		for (int i = 0; i < N; ++i) {
+			final File file = folder.newFile("test" + i + ".txt");
+			register.createWatcher(file).addListener(new FileAdapter() {
+				public void onModified(FileEvent event) {
+					if (event.getFile().equals(file)) {
+						done.countDown();
+					} else {
+						foreign.countDown();
+					}
+				}
+			}).watch();
+			events.add(SimulatedWatchEventSource.event(ENTRY_MODIFY, file.toPath().getFileName()));
+		}
+		assertTrue(fileSystem.awaitRegistration(folder.getRoot().toPath(), 10, TimeUnit.SECONDS));
+
+		fileSystem.injectAll(folder.getRoot().toPath(), events);
+
+		assertTrue("Not notified: " + done.getCount(), done.await(30, TimeUnit.SECONDS));
+		assertEquals(1, foreign.getCount());
+	}
+
+	/**
+	 * Volume test. 1000 long running listeners on a single file should be notified in parallel.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSimWR_1000listeners() throws IOException, InterruptedException {
+		int N = 1000;
+		final CountDownLatch entered = new CountDownLatch(N);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		File file = folder.newFile("test1000L.txt");
+		FileWatcher watcher = null;
+		for (int i = 0; i < N; ++i) {
+			watcher = register.createWatcher(file).addListener(new FileAdapter() {
+				public void onModified(FileEvent event) {
+					// All listeners are in progress at the same time, none waits for another one
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			watcher.watch();
+		}
+		assertEquals(N, watcher.getListeners().size());
+		assertTrue(fileSystem.awaitRegistration(folder.getRoot().toPath(), 5, TimeUnit.SECONDS));
+
+		try {
+			fileSystem.inject(ENTRY_MODIFY, file.toPath());
+			assertTrue("Not notified: " + entered.getCount(), entered.await(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@After
+	public void restoreRegister() {
+		WatcherRegister.closeAllWatchers();
+		register.setEventSourceFactory(null);
+	}
+}
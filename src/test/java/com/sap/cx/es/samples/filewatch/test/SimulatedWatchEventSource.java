@@ -0,0 +1,114 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.BufferedWatchEventSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory event source. Events are injected by the test and delivered to the watcher
+ * without disk I/O, with the same key signalling and overflow semantics as the native watch service.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class SimulatedWatchEventSource extends BufferedWatchEventSource {
+	private final Map<Path, CountDownLatch> registrations = new ConcurrentHashMap<>();
+
+	public SimulatedWatchEventSource(int keyCapacity) {
+		super(keyCapacity);
+	}
+
+	public SimulatedWatchEventSource() {
+		this(Integer.MAX_VALUE);
+	}
+
+	@Override
+	public WatchKey register(Path directory) throws IOException {
+		WatchKey key = super.register(directory);
+		registrationLatch(directory.toAbsolutePath()).countDown();
+		return key;
+	}
+
+	/**
+	 * Wait until the watcher registers the directory
+	 *
+	 * @param directory
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitRegistration(Path directory, long timeout, TimeUnit unit) throws InterruptedException {
+		return registrationLatch(directory.toAbsolutePath()).await(timeout, unit);
+	}
+
+	private CountDownLatch registrationLatch(Path dir) {
+		return registrations.computeIfAbsent(dir, key -> new CountDownLatch(1));
+	}
+
+	/**
+	 * @param directory
+	 * @return true if the directory is registered by the watcher
+	 */
+	public boolean isRegistered(Path directory) {
+		return getKey(directory) != null;
+	}
+
+	/**
+	 * Inject event on the file of a registered directory
+	 *
+	 * @param kind
+	 * @param file
+	 */
+	public void inject(WatchEvent.Kind<Path> kind, Path file) {
+		injectAll(file.toAbsolutePath().getParent(), Collections.singletonList(event(kind, file.getFileName())));
+	}
+
+	/**
+	 * Inject events atomically, the watcher can not consume them until all are queued
+	 *
+	 * @param directory registered directory
+	 * @param events events with a file name context
+	 */
+	public void injectAll(Path directory, List<WatchEvent<Path>> events) {
+		BufferedKey key = getKey(directory);
+		if (key == null) {
+			throw new IllegalStateException("Directory is not registered: " + directory);
+		}
+		key.add(events);
+	}
+
+	@Override
+	public void close() {
+		try {
+			super.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+}
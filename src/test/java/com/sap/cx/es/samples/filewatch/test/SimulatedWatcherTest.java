@@ -0,0 +1,194 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.FileAdapter;
+import com.sap.cx.es.samples.filewatch.FileWatcher;
+import com.sap.cx.es.samples.filewatch.WatcherRegister;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.junit.Assert.*;
+
+/**
+ * Watcher tests on the in-memory event source, without disk I/O and sleeps.
+ * Watchers and listeners run on the own threads of the test and do not depend on the register pools.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class SimulatedWatcherTest {
+	private static final List<WatchEvent.Kind<Path>> KINDS = new ArrayList<>();
+
+	static {
+		KINDS.add(ENTRY_CREATE);
+		KINDS.add(ENTRY_MODIFY);
+		KINDS.add(ENTRY_DELETE);
+	}
+
+	// Existing empty folder, events on it are simulated
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private SimulatedWatchEventSource source;
+	private int mailboxCapacity;
+
+	@Before
+	public void rememberMailboxCapacity() {
+		mailboxCapacity = WatcherRegister.getRegister().getListenerMailboxCapacity();
+	}
+
+	/**
+	 * Events should be delivered in order of injection
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSim_ordering() throws InterruptedException {
+		int N = 100_000;
+		final List<String> received = new ArrayList<>(N);
+		final CountDownLatch done = new CountDownLatch(N);
+
+		WatcherRegister.getRegister().setListenerMailboxCapacity(N);
+		FileWatcher watcher = startWatcher(new SimulatedWatchEventSource(), new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				received.add("C" + event.getFile().getName());
+				done.countDown();
+			}
+
+			public void onModified(FileEvent event) {
+				received.add("M" + event.getFile().getName());
+				done.countDown();
+			}
+
+			public void onDeleted(FileEvent event) {
+				received.add("D" + event.getFile().getName());
+				done.countDown();
+			}
+		});
+
+		List<String> expected = new ArrayList<>(N);
+		for (int i = 0; i < N; ++i) {
+			WatchEvent.Kind<Path> kind = KINDS.get(i % KINDS.size());
+			source.inject(kind, folder.getRoot().toPath().resolve("f" + i));
+			expected.add(kind.name().charAt(6) + "f" + i);
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(expected, received);
+		assertEquals(0, watcher.getOverflowCount());
+	}
+
+	/**
+	 * Volume test. Million events should be delivered without losses in a few seconds.
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSim_throughput() throws InterruptedException {
+		int N = 1_000_000;
+		int CHUNK = 10_000;
+		final CountDownLatch done = new CountDownLatch(N);
+
+		WatcherRegister.getRegister().setListenerMailboxCapacity(N);
+		FileWatcher watcher = startWatcher(new SimulatedWatchEventSource(), new FileAdapter() {
+			public void onModified(FileEvent event) {
+				done.countDown();
+			}
+		});
+
+		for (int i = 0; i < N; i += CHUNK) {
+			List<WatchEvent<Path>> events = new ArrayList<>(CHUNK);
+			for (int j = i; j < i + CHUNK; ++j) {
+				events.add(SimulatedWatchEventSource.event(ENTRY_MODIFY, Paths.get("f" + j % 1000)));
+			}
+			source.injectAll(folder.getRoot().toPath(), events);
+		}
+
+		assertTrue("Not delivered: " + done.getCount(), done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, watcher.getMailbox(watcher.getListeners().get(0)).getDroppedEvents());
+	}
+
+	/**
+	 * Watcher should count the overflow and keep delivering events after it
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSim_overflowRecovery() throws InterruptedException {
+		int CAPACITY = 100;
+		final CountDownLatch overflown = new CountDownLatch(CAPACITY);
+		final CountDownLatch done = new CountDownLatch(CAPACITY + 1);
+		final List<String> received = new ArrayList<>();
+
+		FileWatcher watcher = startWatcher(new SimulatedWatchEventSource(CAPACITY), new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				received.add(event.getFile().getName());
+				overflown.countDown();
+				done.countDown();
+			}
+		});
+
+		List<WatchEvent<Path>> events = new ArrayList<>();
+		for (int i = 0; i < CAPACITY * 10; ++i) {
+			events.add(SimulatedWatchEventSource.event(ENTRY_CREATE, Paths.get("f" + i)));
+		}
+		source.injectAll(folder.getRoot().toPath(), events);
+		assertTrue(overflown.await(5, TimeUnit.SECONDS));
+
+		source.inject(ENTRY_CREATE, folder.getRoot().toPath().resolve("after"));
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(1, watcher.getOverflowCount());
+		assertEquals(CAPACITY + 1, received.size());
+		assertEquals("f0", received.get(0));
+		assertEquals("after", received.get(CAPACITY));
+	}
+
+	private FileWatcher startWatcher(SimulatedWatchEventSource source, FileAdapter listener) throws InterruptedException {
+		this.source = source;
+		FileWatcher watcher = new FileWatcher(folder.getRoot(), source).addListener(listener, executor);
+		executor.execute(watcher);
+		assertTrue(source.awaitRegistration(folder.getRoot().toPath(), 5, TimeUnit.SECONDS));
+		return watcher;
+	}
+
+	@After
+	public void shutdown() {
+		if (source != null) {
+			source.close();
+		}
+		executor.shutdownNow();
+		WatcherRegister.getRegister().setListenerMailboxCapacity(mailboxCapacity);
+	}
+}
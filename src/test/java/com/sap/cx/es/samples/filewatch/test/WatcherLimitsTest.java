@@ -0,0 +1,267 @@
+/**
+ * ***********************************************************************
+ * Copyright (c) 2020, SAP <sap.com>
+ * <p>
+ * All portions of the code written by SAP are property of SAP.
+ * All Rights Reserved.
+ * <p>
+ * SAP
+ * <p>
+ * Moscow, Russian Federation
+ * <p>
+ * Web: sap.com
+ * ***********************************************************************
+ */
+package com.sap.cx.es.samples.filewatch.test;
+
+import com.sap.cx.es.samples.filewatch.FileAdapter;
+import com.sap.cx.es.samples.filewatch.FileWatcher;
+import com.sap.cx.es.samples.filewatch.WatcherRegister;
+import com.sap.cx.es.samples.filewatch.event.FileEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Native watch accounting and degradation to polling.
+ * Watchers run on the own executor of the test and do not depend on the register pools.
+ *
+ * @author Alexei Liubimov <alexei.liubimov@sap.com>
+ * @package com.sap.cx.es.samples.filewatch.test
+ * @link http://sap.com/
+ * @copyright 2020 SAP
+ */
+public class WatcherLimitsTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final WatcherRegister register = WatcherRegister.getRegister();
+
+	private int nativeWatcherLimit;
+	private long pollingIntervalNanos;
+	private long idleDemotionMillis;
+
+	@Before
+	public void configureRegister() {
+		nativeWatcherLimit = register.getNativeWatcherLimit();
+		pollingIntervalNanos = register.getPollingIntervalNanos();
+		idleDemotionMillis = register.getIdleDemotionMillis();
+
+		WatcherRegister.closeAllWatchers();
+		register.setNativeWatcherLimit(1);
+		register.setPollingInterval(100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Watcher above the limit should poll the directory and report the degradation
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_pollingFallback() throws IOException, InterruptedException {
+		register.setIdleDemotion(1, TimeUnit.HOURS);
+
+		FileWatcher first = startWatcher(folder.newFolder("first"), new CountDownLatch(1));
+		await(() -> register.getNativeWatcherCount() == 1);
+
+		CountDownLatch created = new CountDownLatch(1);
+		File second = folder.newFolder("second");
+		FileWatcher polling = startWatcher(second, created);
+		await(polling::isPolling);
+
+		assertFalse(first.isPolling());
+		assertTrue(register.isDegraded());
+		assertTrue(register.getPollingWatchers().contains(polling));
+		assertEquals(1, register.getNativeWatcherCount());
+
+		write(new File(second, "test.txt"));
+		assertTrue(created.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Idle native watcher should give its native resources to a new watcher and go on with polling
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_idleDemotion() throws IOException, InterruptedException {
+		register.setIdleDemotion(0, TimeUnit.MILLISECONDS);
+
+		CountDownLatch created = new CountDownLatch(1);
+		File first = folder.newFolder("first");
+		FileWatcher demoted = startWatcher(first, created);
+		await(() -> register.getNativeWatcherCount() == 1);
+
+		FileWatcher second = startWatcher(folder.newFolder("second"), new CountDownLatch(1));
+		await(demoted::isPolling);
+		await(() -> register.getNativeWatcherCount() == 1 && !second.isPolling());
+
+		assertTrue(register.getPollingWatchers().contains(demoted));
+		assertFalse(register.getPollingWatchers().contains(second));
+
+		write(new File(first, "test.txt"));
+		assertTrue(created.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Busy polling watcher should take the native resources of an idle native watcher
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_busyPromotion() throws IOException, InterruptedException {
+		register.setIdleDemotion(1, TimeUnit.HOURS);
+
+		FileWatcher idle = startWatcher(folder.newFolder("idle"), new CountDownLatch(1));
+		await(() -> register.getNativeWatcherCount() == 1);
+
+		CountDownLatch created = new CountDownLatch(2);
+		File busy = folder.newFolder("busy");
+		FileWatcher promoted = startWatcher(busy, created);
+		await(promoted::isPolling);
+
+		register.setIdleDemotion(0, TimeUnit.MILLISECONDS);
+		write(new File(busy, "first.txt"));
+		await(() -> promoted.isWatching() && !promoted.isPolling());
+		await(idle::isPolling);
+		assertEquals(1, register.getNativeWatcherCount());
+		assertFalse(register.getPollingWatchers().contains(promoted));
+
+		write(new File(busy, "second.txt"));
+		assertTrue(created.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Native resources of a stopped watcher should go to a polling watcher
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_releasePromotion() throws IOException, InterruptedException {
+		register.setIdleDemotion(1, TimeUnit.HOURS);
+
+		ExecutorService stopped = Executors.newSingleThreadExecutor();
+		startWatcher(folder.newFolder("first"), new CountDownLatch(1), stopped);
+		await(() -> register.getNativeWatcherCount() == 1);
+
+		FileWatcher polling = startWatcher(folder.newFolder("second"), new CountDownLatch(1));
+		await(polling::isPolling);
+
+		stopped.shutdownNow();
+		await(() -> polling.isWatching() && !polling.isPolling());
+		assertFalse(register.isDegraded());
+		assertEquals(1, register.getNativeWatcherCount());
+	}
+
+	/**
+	 * Polled file watcher should scan its file only and still see its changes
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_pollingFile() throws IOException, InterruptedException {
+		register.setNativeWatcherLimit(0);
+
+		File dir = folder.newFolder("dir");
+		File file = new File(dir, "test.txt");
+		write(file);
+
+		CountDownLatch modified = new CountDownLatch(1);
+		CountDownLatch other = new CountDownLatch(1);
+		FileWatcher watcher = register.createWatcher(file).addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				other.countDown();
+			}
+
+			public void onModified(FileEvent event) {
+				modified.countDown();
+			}
+		}, executor);
+		executor.execute(watcher);
+		await(watcher::isPolling);
+
+		write(new File(dir, "other.txt"));
+		try (FileWriter writer = new FileWriter(file, true)) {
+			writer.write("More");
+		}
+		assertTrue(modified.await(2, TimeUnit.SECONDS));
+		assertEquals(1, other.getCount());
+	}
+
+	/**
+	 * Closing all watchers should stop native and polling watchers and reset the accounting
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRL_closeAll() throws IOException, InterruptedException {
+		register.setIdleDemotion(1, TimeUnit.HOURS);
+
+		FileWatcher first = startWatcher(folder.newFolder("first"), new CountDownLatch(1));
+		await(() -> register.getNativeWatcherCount() == 1);
+		FileWatcher second = startWatcher(folder.newFolder("second"), new CountDownLatch(1));
+		await(second::isPolling);
+
+		WatcherRegister.closeAllWatchers();
+		await(() -> !first.isWatching() && !second.isWatching());
+		assertFalse(register.isDegraded());
+		assertEquals(0, register.getNativeWatcherCount());
+	}
+
+	private FileWatcher startWatcher(File dir, CountDownLatch created) {
+		return startWatcher(dir, created, executor);
+	}
+
+	private FileWatcher startWatcher(File dir, CountDownLatch created, ExecutorService executor) {
+		FileWatcher watcher = register.createWatcher(dir).addListener(new FileAdapter() {
+			public void onCreated(FileEvent event) {
+				created.countDown();
+			}
+		}, executor);
+		executor.execute(watcher);
+		return watcher;
+	}
+
+	private static void write(File file) throws IOException {
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write("Some String");
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Condition is not met in 2 seconds", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@After
+	public void restoreRegister() {
+		WatcherRegister.closeAllWatchers();
+		executor.shutdownNow();
+		register.setNativeWatcherLimit(nativeWatcherLimit);
+		register.setPollingInterval(pollingIntervalNanos, TimeUnit.NANOSECONDS);
+		register.setIdleDemotion(idleDemotionMillis, TimeUnit.MILLISECONDS);
+	}
+}